@@ -0,0 +1,173 @@
+import benchmarks.Peer;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * This class lets the JMH benchmarks, which have to be in a package, drive a client of the chat.
+ * It does what the client itself does for every operation, see Peer.
+ */
+public class ChatPeer implements Peer {
+    Chat chat;
+    Server server;
+
+    /**
+     * Constructor for the ChatPeer class
+     * @param chat the client
+     * @param server the server of the client, which parses what legacy connections send
+     */
+    ChatPeer(Chat chat, Server server) {
+        this.chat = chat;
+        this.server = server;
+    }
+
+    /**
+     * Creates a client that doesn't listen or join anything
+     * @return the client
+     */
+    public static Peer detached() {
+        mute();
+        Chat chat = new Chat("bench", LoadGenerator.FIRST_PORT - 1);
+        return new ChatPeer(chat, new Server(chat));
+    }
+
+    /**
+     * Starts a ring of clients, see LoadGenerator.ring
+     * @param size the number of clients
+     * @param options the chat options to apply to every client
+     * @return the clients in ring order
+     * @throws InterruptedException if interrupted while the ring settles
+     */
+    public static List<Peer> ring(int size, String[] options) throws InterruptedException {
+        mute();
+        List<Peer> peers = new ArrayList<>();
+        for (Chat chat : LoadGenerator.ring(size, 1, options)) {
+            peers.add(new ChatPeer(chat, null));
+        }
+        return peers;
+    }
+
+    /**
+     * Creates the key stores for running the ring with --tls, unless they are there already
+     * @param directory where the key stores go
+     * @throws Exception if a key store can't be created
+     */
+    public static void keyStores(String directory) throws Exception {
+        if (!new File(directory, TlsContext.TRUST_STORE).isFile()) {
+            TestAuthority.main(new String[] { directory });
+        }
+    }
+
+    /**
+     * Drops what the chat prints for every message it handles, which would drown the results and skew them
+     */
+    static void mute() {
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+    }
+
+    /**
+     * Client accessor
+     * @param peer a peer created here
+     * @return its client
+     */
+    static Chat chat(Peer peer) {
+        return ((ChatPeer) peer).chat;
+    }
+
+    public String alias() {
+        return this.chat.getAlias();
+    }
+
+    public JsonObject createMessage_JOIN() {
+        return this.chat.createMessage_JOIN(this.chat.getAlias(), this.chat.getHost(), this.chat.getPort());
+    }
+
+    public JsonObject createMessage_PUT(String aliasReceiver, String message) {
+        return this.chat.createMessage_PUT(this.chat.getAlias(), aliasReceiver, message);
+    }
+
+    public JsonObject createMessage_NEWSUCCESSOR() {
+        return this.chat.createMessage_NEWSUCCESSOR(this.chat.getHost(), this.chat.getPort());
+    }
+
+    public JsonObject createMessage_PING() {
+        return this.chat.createMessage_PING(this.chat.getHost(), this.chat.getPort(), this.chat.getId());
+    }
+
+    public byte[] writeFrame(JsonObject jsonMessage) {
+        return PeerConnection.toBytes(jsonMessage);
+    }
+
+    public JsonObject readFrame(byte[] payload) {
+        return PeerConnection.fromBytes(payload);
+    }
+
+    public byte[] writeLegacy(JsonObject jsonMessage) throws IOException {
+        // What Chat.sendLegacy writes onto a socket
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        JsonWriter jsonWriter = Json.createWriter(oos);
+        jsonWriter.write(jsonMessage);
+        jsonWriter.close();
+        return bytes.toByteArray();
+    }
+
+    public JsonObject readLegacy(byte[] stream) throws IOException {
+        return this.server.parseLegacy(stream);
+    }
+
+    public byte[] encodeBinary(JsonObject jsonMessage) {
+        return BinaryCodec.encode(jsonMessage);
+    }
+
+    public JsonObject decodeBinary(byte[] message) {
+        return BinaryCodec.decode(message);
+    }
+
+    public JsonObject putFor(Peer receiver, int sequence) {
+        String message = "benchmark message " + sequence;
+        JsonObject putJson = this.chat.directory == null
+            ? this.chat.createMessage_PUT(this.chat.getAlias(), receiver.alias(), message)
+            : this.chat.createMessage_PUT(this.chat.getAlias(), receiver.alias(), message, this.chat.getHost(), this.chat.getPort());
+        return this.chat.metrics == null ? putJson : Metrics.stamp(putJson);
+    }
+
+    public void sendJson(JsonObject jsonMessage, Peer receiver) {
+        Chat to = chat(receiver);
+        this.chat.sendJson(jsonMessage, to.getHost(), to.getPort());
+    }
+
+    public void send(JsonObject putJson, Peer receiver) {
+        if (this.chat.sendDirect(putJson, receiver.alias())) return;
+
+        FingerTable.Finger hop = this.chat.nextHop(receiver.alias());
+        this.chat.sendJson(putJson, hop.ip, hop.port);
+    }
+
+    public void onDelivery(Consumer<JsonObject> listener) {
+        this.chat.deliveryListener = listener;
+    }
+
+    public void connect(Peer to, boolean resume) throws IOException {
+        if (!resume && this.chat.tls != null) this.chat.tls.forgetSessions();
+        PeerConnection connection = this.chat.newConnection(chat(to).getHost(), chat(to).getPort());
+        try {
+            connection.connect();
+        } finally {
+            connection.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures opening a framed connection to a client, handshakes included, which is what a message pays
+ * when it doesn't go over a pooled connection. Over TLS, a connection either resumes the session of the one
+ * before it or starts afresh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class ConnectBenchmark {
+    /**
+     * A pair of clients talking one transport
+     */
+    @State(Scope.Benchmark)
+    public static class Pair {
+        Peer from;
+        Peer to;
+
+        /**
+         * Starts the clients
+         * @param transport one of the transports of Peers
+         */
+        void start(String transport) {
+            List<Peer> ring = Peers.ring(2, transport);
+            this.from = ring.get(0);
+            this.to = ring.get(1);
+        }
+    }
+
+    public static class Plaintext extends Pair {
+        @Setup
+        public void setUp() {
+            start(Peers.PERSISTENT);
+        }
+    }
+
+    public static class Tls extends Pair {
+        @Setup
+        public void setUp() {
+            start(Peers.TLS);
+        }
+    }
+
+    @Benchmark
+    public void plaintext(Plaintext pair) throws IOException {
+        pair.from.connect(pair.to, true);
+    }
+
+    @Benchmark
+    public void tlsFullHandshake(Tls pair) throws IOException {
+        pair.from.connect(pair.to, false);
+    }
+
+    @Benchmark
+    public void tlsResumed(Tls pair) throws IOException {
+        pair.from.connect(pair.to, true);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what building, encoding and parsing a message costs, with no network involved.
+ * The PUT is the one every chat message is sent as.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class MessageBenchmark {
+    static final String MESSAGE = "Hello there, how is the ring today?";
+
+    Peer peer;
+    JsonObject putJson;
+    byte[] frame;
+    byte[] legacy;
+    byte[] binary;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.peer = Peers.detached();
+        this.putJson = this.peer.createMessage_PUT("bob", MESSAGE);
+        this.frame = this.peer.writeFrame(this.putJson);
+        this.legacy = this.peer.writeLegacy(this.putJson);
+        this.binary = this.peer.encodeBinary(this.putJson);
+    }
+
+    @Benchmark
+    public JsonObject createMessage_JOIN() {
+        return this.peer.createMessage_JOIN();
+    }
+
+    @Benchmark
+    public JsonObject createMessage_PUT() {
+        return this.peer.createMessage_PUT("bob", MESSAGE);
+    }
+
+    @Benchmark
+    public JsonObject createMessage_NEWSUCCESSOR() {
+        return this.peer.createMessage_NEWSUCCESSOR();
+    }
+
+    @Benchmark
+    public JsonObject createMessage_PING() {
+        return this.peer.createMessage_PING();
+    }
+
+    @Benchmark
+    public byte[] jsonSerialize() {
+        return this.peer.writeFrame(this.putJson);
+    }
+
+    @Benchmark
+    public JsonObject jsonParse() {
+        return this.peer.readFrame(this.frame);
+    }
+
+    @Benchmark
+    public byte[] legacySerialize() throws IOException {
+        return this.peer.writeLegacy(this.putJson);
+    }
+
+    @Benchmark
+    public JsonObject legacyParse() throws IOException {
+        return this.peer.readLegacy(this.legacy);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return this.peer.encodeBinary(this.putJson);
+    }
+
+    @Benchmark
+    public JsonObject binaryDecode() {
+        return this.peer.decodeBinary(this.binary);
+    }
+}
\ No newline at end of file
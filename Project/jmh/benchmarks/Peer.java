@@ -0,0 +1,124 @@
+package benchmarks;
+
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * This interface is a chat client running in the JVM of a benchmark. The chat lives in the default package,
+ * which JMH doesn't allow benchmarks in and which code in a package can't refer to, so the benchmarks drive
+ * the chat through this interface. ChatPeer implements it in the default package, see Peers for getting one.
+ */
+public interface Peer {
+    /**
+     * Alias accessor
+     * @return the name of the client
+     */
+    String alias();
+
+    /**
+     * Builds a JOIN the way a joining client does
+     * @return the message
+     */
+    JsonObject createMessage_JOIN();
+
+    /**
+     * Builds a PUT the way Client.put does
+     * @param aliasReceiver the name of the destination client
+     * @param message the text of the message
+     * @return the message
+     */
+    JsonObject createMessage_PUT(String aliasReceiver, String message);
+
+    /**
+     * Builds a NEWSUCCESSOR the way a client accepting a JOIN does
+     * @return the message
+     */
+    JsonObject createMessage_NEWSUCCESSOR();
+
+    /**
+     * Builds a PING the way the heartbeat does
+     * @return the message
+     */
+    JsonObject createMessage_PING();
+
+    /**
+     * Serializes a message into the payload of a JSON frame
+     * @param jsonMessage the message
+     * @return the payload
+     */
+    byte[] writeFrame(JsonObject jsonMessage);
+
+    /**
+     * Parses the payload of a JSON frame
+     * @param payload the payload
+     * @return the message
+     */
+    JsonObject readFrame(byte[] payload);
+
+    /**
+     * Serializes a message the way a legacy connection writes it onto its socket
+     * @param jsonMessage the message
+     * @return the bytes of the object stream
+     * @throws IOException if the stream can't be written
+     */
+    byte[] writeLegacy(JsonObject jsonMessage) throws IOException;
+
+    /**
+     * Parses what a legacy connection wrote
+     * @param stream the bytes of the object stream
+     * @return the message
+     * @throws IOException if the stream is broken
+     */
+    JsonObject readLegacy(byte[] stream) throws IOException;
+
+    /**
+     * Encodes a message with the binary codec
+     * @param jsonMessage the message
+     * @return the encoded message
+     */
+    byte[] encodeBinary(JsonObject jsonMessage);
+
+    /**
+     * Decodes a message of the binary codec
+     * @param message the encoded message
+     * @return the message
+     */
+    JsonObject decodeBinary(byte[] message);
+
+    /**
+     * Builds the PUT this client sends another one, the way Client.put does
+     * @param receiver the destination client
+     * @param sequence a number to tell the messages apart
+     * @return the message
+     */
+    JsonObject putFor(Peer receiver, int sequence);
+
+    /**
+     * Sends a message straight to another client
+     * @param jsonMessage the message
+     * @param receiver the client to send it to
+     */
+    void sendJson(JsonObject jsonMessage, Peer receiver);
+
+    /**
+     * Sends a PUT the way Client.put does, straight to the receiver if its address is known, else around the ring
+     * @param putJson the message
+     * @param receiver the destination client
+     */
+    void send(JsonObject putJson, Peer receiver);
+
+    /**
+     * Has the PUTs delivered to this client passed on
+     * @param listener gets every PUT delivered, or null to stop
+     */
+    void onDelivery(Consumer<JsonObject> listener);
+
+    /**
+     * Opens a framed connection to another client, handshakes included, and closes it again
+     * @param to the client to connect to
+     * @param resume false to drop the TLS sessions first, so the handshake starts afresh
+     * @throws IOException if the connection fails
+     */
+    void connect(Peer to, boolean resume) throws IOException;
+}
\ No newline at end of file
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+/**
+ * This class starts the clients the benchmarks run against. It looks up ChatPeer by name,
+ * since a class in a package can't refer to one in the default package.
+ */
+public final class Peers {
+    // Where TestAuthority puts the key stores of the benchmarks over TLS, relative to the directory JMH runs in
+    static final String KEY_STORES = "target/benchmark-tls";
+
+    // The transports the benchmarks compare, as given to @Param
+    static final String LEGACY = "legacy";
+    static final String PERSISTENT = "persistent";
+    static final String BINARY = "binary";
+    static final String BATCH = "batch";
+    static final String TLS = "tls";
+
+    private Peers() {
+    }
+
+    /**
+     * Creates a client that doesn't listen or join anything, for building and parsing messages
+     * @return the client
+     */
+    public static Peer detached() {
+        return (Peer) call("detached", new Class<?>[0]);
+    }
+
+    /**
+     * Starts a ring of clients on consecutive ports, all using one transport
+     * @param size the number of clients
+     * @param transport one of the transports above
+     * @return the clients in ring order
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Peer> ring(int size, String transport) {
+        return (List<Peer>) call("ring", new Class<?>[] { int.class, String[].class }, size, options(transport));
+    }
+
+    /**
+     * Translates a transport to the options of the chat
+     * @param transport one of the transports above
+     * @return the options
+     */
+    static String[] options(String transport) {
+        switch(transport) {
+            case LEGACY:
+                return new String[0];
+            case PERSISTENT:
+                return new String[] { "--persistent" };
+            case BINARY:
+                return new String[] { "--binary" };
+            case BATCH:
+                return new String[] { "--batch" };
+            case TLS:
+                call("keyStores", new Class<?>[] { String.class }, KEY_STORES);
+                return new String[] { "--tls", KEY_STORES };
+            default: throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+    }
+
+    /**
+     * Calls a static method of ChatPeer
+     * @param name the name of the method
+     * @param types the parameter types of the method
+     * @param args the arguments
+     * @return what the method returned
+     */
+    static Object call(String name, Class<?>[] types, Object... args) {
+        try {
+            return Class.forName("ChatPeer").getMethod(name, types).invoke(null, args);
+        } catch(InvocationTargetException e) {
+            throw new IllegalStateException(name + " failed: " + e.getCause(), e.getCause());
+        } catch(ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't call ChatPeer." + name, e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.JsonObject;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of a PUT from the first client of a ring to the last one, which is every hop of the ring
+ * but one, each PUT waiting for the previous one to arrive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class RingBenchmark {
+    @Param({ "2", "4", "8", "16" })
+    int size;
+
+    @Param({ Peers.LEGACY, Peers.BINARY })
+    String transport;
+
+    Peer sender;
+    Peer receiver;
+    BlockingQueue<JsonObject> arrived;
+    int sequence;
+
+    @Setup
+    public void setUp() {
+        List<Peer> ring = Peers.ring(this.size, this.transport);
+        this.sender = ring.get(0);
+        this.receiver = ring.get(this.size - 1);
+        this.arrived = new LinkedBlockingQueue<>();
+        this.receiver.onDelivery(this.arrived::add);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.receiver.onDelivery(null);
+    }
+
+    @Benchmark
+    public JsonObject put() throws InterruptedException {
+        this.sender.send(this.sender.putFor(this.receiver, this.sequence++), this.receiver);
+        return RoundTripBenchmark.await(this.arrived);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.JsonObject;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one PUT going through sendJson to a client on loopback until that client delivers it:
+ * encoding, the transport, parsing and dispatch. Comparing the transports shows what each adds per message,
+ * e.g. tls against persistent is the cost of encrypting and authenticating a message on a pooled connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+public class RoundTripBenchmark {
+    // How long to wait for a PUT to arrive before giving up on the ring
+    static final long DELIVERY_TIMEOUT_MS = 5000;
+
+    @Param({ Peers.LEGACY, Peers.PERSISTENT, Peers.BINARY, Peers.BATCH, Peers.TLS })
+    String transport;
+
+    Peer sender;
+    Peer receiver;
+    BlockingQueue<JsonObject> arrived;
+    int sequence;
+
+    @Setup
+    public void setUp() {
+        List<Peer> ring = Peers.ring(2, this.transport);
+        this.sender = ring.get(0);
+        this.receiver = ring.get(1);
+        this.arrived = new LinkedBlockingQueue<>();
+        this.receiver.onDelivery(this.arrived::add);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.receiver.onDelivery(null);
+    }
+
+    @Benchmark
+    public JsonObject sendJson() throws InterruptedException {
+        this.sender.sendJson(this.sender.putFor(this.receiver, this.sequence++), this.receiver);
+        return await(this.arrived);
+    }
+
+    /**
+     * Waits for the next PUT to arrive
+     * @param arrived where the receiver puts the PUTs it delivers
+     * @return the PUT
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static JsonObject await(BlockingQueue<JsonObject> arrived) throws InterruptedException {
+        JsonObject putJson = arrived.poll(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (putJson == null) {
+            throw new IllegalStateException("The PUT didn't arrive, is the ring broken?");
+        }
+        return putJson;
+    }
+}
\ No newline at end of file
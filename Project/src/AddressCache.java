@@ -0,0 +1,106 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class remembers where other clients can be reached, so repeated messages to the same alias
+ * can go straight to it instead of around the ring.
+ * Entries expire after a while and the least recently used ones are dropped when the cache is full.
+ */
+public class AddressCache {
+    /**
+     * This class represents the address of one client
+     */
+    public static class Address {
+        String ip;
+        int port;
+        long expiresAt;
+
+        /**
+         * Constructor for the Address class
+         * @param ip the IP address of the client
+         * @param port the port of the client
+         * @param expiresAt when the address should no longer be trusted, in milliseconds
+         */
+        public Address(String ip, int port, long expiresAt) {
+            this.ip = ip;
+            this.port = port;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    int capacity;
+    long ttlMs;
+
+    // Addresses keyed by alias, in access order so the eldest entry is the least recently used
+    LinkedHashMap<String, Address> addresses;
+
+    // How many aliases map to each "ip:port", so connections to cached addresses can be kept open
+    Map<String, Integer> addressCounts;
+
+    /**
+     * Constructor for the AddressCache class
+     * @param capacity the maximum number of aliases to remember
+     * @param ttlMs how long an address is trusted after it was learned
+     */
+    public AddressCache(int capacity, long ttlMs) {
+        this.capacity = capacity;
+        this.ttlMs = ttlMs;
+        this.addresses = new LinkedHashMap<>(16, 0.75f, true);
+        this.addressCounts = new HashMap<>();
+    }
+
+    /**
+     * Looks up the address of a client
+     * @param alias the name of the client
+     * @return the address, or null if it isn't known or has expired
+     */
+    public synchronized Address get(String alias) {
+        Address address = this.addresses.get(alias);
+        if (address != null && address.expiresAt < System.currentTimeMillis()) {
+            remove(alias);
+            return null;
+        }
+        return address;
+    }
+
+    /**
+     * Remembers the address of a client, dropping the least recently used entry if the cache is full
+     * @param alias the name of the client
+     * @param ip the IP address of the client
+     * @param port the port of the client
+     * @return true if an entry had to be dropped to make room
+     */
+    public synchronized boolean put(String alias, String ip, int port) {
+        remove(alias);
+        this.addresses.put(alias, new Address(ip, port, System.currentTimeMillis() + this.ttlMs));
+        this.addressCounts.merge(ip + ":" + port, 1, Integer::sum);
+
+        if (this.addresses.size() <= this.capacity) return false;
+        Iterator<String> eldest = this.addresses.keySet().iterator();
+        remove(eldest.next());
+        return true;
+    }
+
+    /**
+     * Forgets the address of a client
+     * @param alias the name of the client
+     */
+    public synchronized void remove(String alias) {
+        Address address = this.addresses.remove(alias);
+        if (address != null) {
+            this.addressCounts.computeIfPresent(address.ip + ":" + address.port, (key, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * Checks whether any alias currently maps to an address
+     * @param ip the IP address to check
+     * @param port the port to check
+     * @return true if some client is cached at ip:port
+     */
+    public synchronized boolean containsAddress(String ip, int port) {
+        return this.addressCounts.containsKey(ip + ":" + port);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,308 @@
+import javax.json.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class sends files to other clients as a stream of CHUNK messages and puts received files back together.
+ * Each chunk is routed on its own like a PUT, so the clients in between only ever hold one chunk of a file.
+ * The sender reads the file one chunk at a time and keeps at most CHUNK_WINDOW chunks in flight,
+ * and the receiver writes every chunk to its place in the file as it arrives, so memory use doesn't grow with the file.
+ */
+public class Attachments {
+    // Bytes of the file in one chunk, before compression and Base64
+    static final int CHUNK_BYTES = 64 * 1024;
+
+    // Chunks a sender may have queued or on the wire before it waits for the oldest one
+    static final int CHUNK_WINDOW = 8;
+
+    // Most chunks in a file, so every offset in it fits in an int
+    static final int MAX_CHUNKS = Integer.MAX_VALUE / CHUNK_BYTES + 1;
+
+    // How long a file may go without a chunk arriving before the part received is thrown away
+    static final long DOWNLOAD_TIMEOUT_MS = 60000;
+
+    /**
+     * This class represents a file that is being received
+     */
+    static class Download {
+        String name;
+        File part;
+        FileChannel channel;
+        BitSet received;
+        int count;
+
+        // When the last chunk arrived
+        long touched;
+
+        /**
+         * Constructor for the Download class. Creates the partial file.
+         * @param name the name of the file at the sender
+         * @param part where the chunks are written until the file is complete
+         * @param count the number of chunks in the file
+         * @throws IOException if the partial file can't be created
+         */
+        Download(String name, File part, int count) throws IOException {
+            this.name = name;
+            this.part = part;
+            this.count = count;
+            this.received = new BitSet(count);
+            this.touched = System.currentTimeMillis();
+            this.channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    // Where received files are saved
+    File directory;
+
+    // Files being received, keyed by transfer ID
+    Map<String, Download> downloads;
+
+    // Files this client is sending, keyed by transfer ID, with whether a chunk came back because the receiver isn't in the ring
+    Map<String, Boolean> uploads;
+
+    /**
+     * Constructor for the Attachments class
+     * @param directory where received files are saved, created when the first file arrives
+     */
+    public Attachments(File directory) {
+        this.directory = directory;
+        this.downloads = new ConcurrentHashMap<>();
+        this.uploads = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sends a file to another client, blocking until every chunk has left this client
+     * @param chat the client sending the file
+     * @param recipient the alias of the receiver
+     * @param file the file to send
+     * @param compress whether to deflate the chunks that get smaller that way
+     * @return true if every chunk was sent, false if the receiver turned out not to be in the ring
+     * @throws IOException if the file can't be read or a chunk can't be sent
+     */
+    public boolean send(Chat chat, String recipient, File file, boolean compress) throws IOException {
+        String transfer = UUID.randomUUID().toString();
+        long size = file.length();
+        long chunks = Math.max(1, (size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        if (chunks > MAX_CHUNKS) {
+            throw new IOException(file + " is too big, files of up to " + (long) MAX_CHUNKS * CHUNK_BYTES + " bytes can be sent");
+        }
+        int count = (int) chunks;
+
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+        Deque<CompletableFuture<Void>> window = new ArrayDeque<>();
+        this.uploads.put(transfer, false);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int index = 0; index < count && !this.uploads.get(transfer); index++) {
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Keep reading until the chunk is full or the file ends
+                }
+                byte[] data = encode(buffer.array(), buffer.position(), compress);
+                boolean compressed = data != null;
+                if (!compressed) data = Arrays.copyOf(buffer.array(), buffer.position());
+
+                JsonObject chunkJson = chat.createMessage_CHUNK(chat.getAlias(), recipient, transfer, file.getName(), index, count,
+                    buffer.position(), Base64.getEncoder().encodeToString(data), compressed);
+                FingerTable.Finger hop = chat.nextHop(recipient);
+                if (hop == null) return false;
+
+                if (window.size() >= CHUNK_WINDOW) await(window.removeFirst());
+                window.addLast(chat.sendAsync(chunkJson, hop.ip, hop.port));
+            }
+            while (!window.isEmpty()) {
+                await(window.removeFirst());
+            }
+            return !this.uploads.get(transfer);
+        } finally {
+            this.uploads.remove(transfer);
+        }
+    }
+
+    /**
+     * Waits for a chunk to be sent
+     * @param sent the future of the send
+     * @throws IOException if the chunk couldn't be sent
+     */
+    static void await(CompletableFuture<Void> sent) throws IOException {
+        try {
+            sent.join();
+        } catch(CompletionException e) {
+            throw new IOException("A chunk couldn't be sent: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Deflates a chunk
+     * @param data the buffer holding the chunk
+     * @param length the number of bytes in the chunk
+     * @param compress whether to try at all
+     * @return the deflated chunk, or null if it isn't compressed because that wouldn't make it smaller
+     */
+    static byte[] encode(byte[] data, int length, boolean compress) {
+        if (!compress) return null;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(length);
+        byte[] block = new byte[8 * 1024];
+        while (!deflater.finished() && deflated.size() < length) {
+            deflated.write(block, 0, deflater.deflate(block));
+        }
+        boolean smaller = deflater.finished() && deflated.size() < length;
+        deflater.end();
+        return smaller ? deflated.toByteArray() : null;
+    }
+
+    /**
+     * Inflates a chunk
+     * @param data the deflated chunk
+     * @param length the number of bytes in the chunk before it was deflated
+     * @return the chunk
+     * @throws IOException if the chunk isn't valid deflate data of that length
+     */
+    static byte[] decode(byte[] data, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        byte[] inflated = new byte[length];
+        try {
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int step = inflater.inflate(inflated, read, length - read);
+                if (step == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                read += step;
+            }
+            if (read != length) throw new IOException("Chunk inflated to " + read + " bytes instead of " + length);
+            return inflated;
+        } catch(DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes a chunk that arrived to its place in the file. Chunks may arrive in any order, and repeated ones are ignored.
+     * The transfer ID names the partial file, so a chunk with anything but a UUID there is rejected, as is one
+     * bigger than CHUNK_BYTES or of a file with more than MAX_CHUNKS chunks.
+     * @param chunkJson the message
+     * @return the saved file if this chunk completed it, otherwise null
+     * @throws IOException if the chunk is rejected or can't be written
+     */
+    public File write(JsonObject chunkJson) throws IOException {
+        JsonObject parameters = chunkJson.getJsonObject("parameters");
+        String transfer;
+        try {
+            transfer = UUID.fromString(parameters.getString("transfer")).toString();
+        } catch(IllegalArgumentException e) {
+            throw new IOException("Chunk rejected, the transfer ID isn't a UUID: " + parameters.getString("transfer"));
+        }
+        int index = parameters.getInt("index");
+        int count = parameters.getInt("count");
+        if (count < 1 || count > MAX_CHUNKS) {
+            throw new IOException("Chunk rejected, a file can't have " + count + " chunks");
+        }
+
+        byte[] data = Base64.getDecoder().decode(parameters.getString("data"));
+        if (parameters.getBoolean("compressed", false)) {
+            int size = parameters.getInt("size");
+            if (size < 0 || size > CHUNK_BYTES) {
+                throw new IOException("Chunk rejected, it can't inflate to " + size + " bytes");
+            }
+            data = decode(data, size);
+        } else if (data.length > CHUNK_BYTES) {
+            throw new IOException("Chunk rejected, it has " + data.length + " bytes");
+        }
+
+        Download download;
+        synchronized (this) {
+            download = this.downloads.get(transfer);
+            if (download == null) {
+                if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                    throw new IOException("Can't create " + this.directory);
+                }
+                // Only the last part of the name counts, so a sender can't write outside the directory
+                String name = new File(parameters.getString("name")).getName();
+                download = new Download(name, new File(this.directory, transfer + ".part"), count);
+                this.downloads.put(transfer, download);
+            }
+        }
+
+        synchronized (download) {
+            if (index < 0 || index >= download.count || download.received.get(index) || !download.channel.isOpen()) return null;
+            download.touched = System.currentTimeMillis();
+            download.channel.write(ByteBuffer.wrap(data), (long) index * CHUNK_BYTES);
+            download.received.set(index);
+            if (download.received.cardinality() < download.count) return null;
+
+            download.channel.close();
+            this.downloads.remove(transfer);
+            return save(download);
+        }
+    }
+
+    /**
+     * Throws away the files that went without a chunk for DOWNLOAD_TIMEOUT_MS, since the rest of them isn't coming
+     * @param now the current time
+     */
+    public void expire(long now) {
+        for (Map.Entry<String, Download> entry : this.downloads.entrySet()) {
+            Download download = entry.getValue();
+            synchronized (download) {
+                if (now - download.touched < DOWNLOAD_TIMEOUT_MS || !this.downloads.remove(entry.getKey(), download)) continue;
+                try {
+                    download.channel.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+                if (!download.part.delete()) {
+                    System.out.printf("Couldn't delete %s%n", download.part);
+                }
+                System.out.printf("Gave up on receiving %s, no part of it arrived for %d seconds%n", download.name, DOWNLOAD_TIMEOUT_MS / 1000);
+            }
+        }
+    }
+
+    /**
+     * Gives a complete file the name the sender gave it, numbered if a file of that name exists already
+     * @param download the complete file
+     * @return the saved file
+     * @throws IOException if the file can't be renamed
+     */
+    synchronized File save(Download download) throws IOException {
+        File saved = new File(this.directory, download.name);
+        for (int copy = 1; saved.exists(); copy++) {
+            saved = new File(this.directory, copy + "-" + download.name);
+        }
+        if (!download.part.renameTo(saved)) {
+            throw new IOException("Can't rename " + download.part + " to " + saved);
+        }
+        return saved;
+    }
+
+    /**
+     * Stops sending a file whose receiver isn't in the ring
+     * @param chunkJson a chunk of the file that came back
+     * @return true if this is the first chunk of a file still being sent that came back
+     */
+    public boolean cancel(JsonObject chunkJson) {
+        return this.uploads.replace(chunkJson.getJsonObject("parameters").getString("transfer"), false, true);
+    }
+}
\ No newline at end of file
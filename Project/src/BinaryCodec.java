@@ -0,0 +1,504 @@
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * This class converts messages between the javax.json object model and a compact binary frame.
+ * A frame is a format byte, a type byte and the rest of the message as tagged, length-prefixed values:
+ *
+ *   message := FORMAT type [name if type is 0] object
+ *   value   := tag payload
+ *   object  := count (name-length name value)*
+ *
+ * Lengths and counts are 4-byte big-endian ints except name lengths, which are one byte.
+ * The lookup methods read single parameters straight from the frame, so a node can route a message without decoding it.
+ */
+public class BinaryCodec {
+    /*----- Format -----*/
+
+    // First byte of every binary frame. JSON frames start with '{' instead.
+    static final byte FORMAT = 0x01;
+
+    // Message type codes. Code 0 means the type name follows as a string. New types are only ever appended.
+    static final String[] TYPES = { null, "JOIN", "ACCEPT", "NEWSUCCESSOR", "PUT", "LEAVE", "FIND", "FOUND", "DELIVERED", "MULTICAST",
+        "ARRIVED", "PING", "PONG", "CHUNK", "ACK" };
+
+    // Value tags
+    static final byte NULL = 0;
+    static final byte TRUE = 1;
+    static final byte FALSE = 2;
+    static final byte LONG = 3;
+    static final byte DECIMAL = 4;
+    static final byte STRING = 5;
+    static final byte ARRAY = 6;
+    static final byte OBJECT = 7;
+
+    /*----- Encoding -----*/
+
+    /**
+     * Encodes a message into a binary frame
+     * @param jsonMessage the message, with a "type" member
+     * @return the bytes of the frame
+     */
+    public static byte[] encode(JsonObject jsonMessage) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            String type = jsonMessage.getString("type");
+            int code = typeCode(type);
+
+            out.writeByte(FORMAT);
+            out.writeByte(code);
+            if (code == 0) writeString(out, type);
+
+            // Everything but the type, which is already in the header
+            out.writeByte(OBJECT);
+            out.writeInt(jsonMessage.size() - 1);
+            for (Map.Entry<String, JsonValue> member : jsonMessage.entrySet()) {
+                if (member.getKey().equals("type")) continue;
+                writeName(out, member.getKey());
+                writeValue(out, member.getValue());
+            }
+            return bytes.toByteArray();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Looks up the code of a message type
+     * @param type the name of the type
+     * @return the code, or 0 if the type has none
+     */
+    static int typeCode(String type) {
+        for (int code = 1; code < TYPES.length; code++) {
+            if (TYPES[code].equals(type)) return code;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes one JSON value with its tag
+     * @param out the stream to write to
+     * @param value the value to write
+     * @throws IOException if the stream fails
+     */
+    static void writeValue(DataOutputStream out, JsonValue value) throws IOException {
+        switch(value.getValueType()) {
+            case NULL:
+                out.writeByte(NULL);
+                break;
+            case TRUE:
+                out.writeByte(TRUE);
+                break;
+            case FALSE:
+                out.writeByte(FALSE);
+                break;
+            case NUMBER:
+                JsonNumber number = (JsonNumber) value;
+                if (number.isIntegral() && number.bigDecimalValue().compareTo(BigDecimal.valueOf(number.longValue())) == 0) {
+                    out.writeByte(LONG);
+                    out.writeLong(number.longValue());
+                } else {
+                    out.writeByte(DECIMAL);
+                    writeString(out, number.bigDecimalValue().toString());
+                }
+                break;
+            case STRING:
+                out.writeByte(STRING);
+                writeString(out, ((JsonString) value).getString());
+                break;
+            case ARRAY:
+                JsonArray array = (JsonArray) value;
+                out.writeByte(ARRAY);
+                out.writeInt(array.size());
+                for (JsonValue element : array) {
+                    writeValue(out, element);
+                }
+                break;
+            case OBJECT:
+                JsonObject object = (JsonObject) value;
+                out.writeByte(OBJECT);
+                out.writeInt(object.size());
+                for (Map.Entry<String, JsonValue> member : object.entrySet()) {
+                    writeName(out, member.getKey());
+                    writeValue(out, member.getValue());
+                }
+                break;
+            default: throw new IllegalArgumentException("Unknown JSON value type " + value.getValueType());
+        }
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string
+     * @param out the stream to write to
+     * @param text the string to write
+     * @throws IOException if the stream fails
+     */
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    /**
+     * Writes a member name, which must fit in 255 bytes
+     * @param out the stream to write to
+     * @param name the member name
+     * @throws IOException if the stream fails
+     */
+    static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFF) {
+            throw new IllegalArgumentException("Member name too long: " + name);
+        }
+        out.writeByte(utf8.length);
+        out.write(utf8);
+    }
+
+    /*----- Decoding -----*/
+
+    /**
+     * Checks whether a frame payload is a binary message rather than JSON text
+     * @param payload the payload of the frame
+     * @return true if the payload starts with the binary format byte
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && payload[0] == FORMAT;
+    }
+
+    /**
+     * Reads the type code of a binary message
+     * @param message the binary message
+     * @return the code of the type, 0 if the type is given by name
+     */
+    public static int getTypeCode(byte[] message) {
+        return message[1] & 0xFF;
+    }
+
+    /**
+     * Reads the type of a binary message without decoding the rest of it
+     * @param message the binary message
+     * @return the name of the type
+     */
+    public static String getType(byte[] message) {
+        int code = getTypeCode(message);
+        if (code != 0) return typeName(code);
+        return readString(ByteBuffer.wrap(message, 2, message.length - 2));
+    }
+
+    /**
+     * Looks up the name of a message type code
+     * @param code the code from the frame header
+     * @return the name of the type
+     */
+    static String typeName(int code) {
+        if (code >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown message type code " + code);
+        }
+        return TYPES[code];
+    }
+
+    /**
+     * Decodes a binary message back into the javax.json object model
+     * @param message the binary message
+     * @return the message as JSON
+     */
+    public static JsonObject decode(byte[] message) {
+        ByteBuffer in = ByteBuffer.wrap(message);
+        if (in.get() != FORMAT) {
+            throw new IllegalArgumentException("Not a binary message");
+        }
+        int code = in.get() & 0xFF;
+        String type = code != 0 ? typeName(code) : readString(in);
+
+        in.get(); // OBJECT tag
+        return readObject(in).add("type", type).build();
+    }
+
+    /**
+     * Reads one tagged value into an object builder.
+     * javax.json 1.0 can't create standalone numbers or strings, so values are added to their parent directly.
+     * @param in the buffer positioned at the tag
+     * @param object the builder of the parent object
+     * @param name the name of the member
+     */
+    static void readMember(ByteBuffer in, JsonObjectBuilder object, String name) {
+        byte tag = in.get();
+        switch(tag) {
+            case NULL:
+                object.addNull(name);
+                break;
+            case TRUE:
+                object.add(name, true);
+                break;
+            case FALSE:
+                object.add(name, false);
+                break;
+            case LONG:
+                object.add(name, in.getLong());
+                break;
+            case DECIMAL:
+                object.add(name, new BigDecimal(readString(in)));
+                break;
+            case STRING:
+                object.add(name, readString(in));
+                break;
+            case ARRAY:
+                object.add(name, readArray(in));
+                break;
+            case OBJECT:
+                object.add(name, readObject(in));
+                break;
+            default: throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Reads one tagged value into an array builder
+     * @param in the buffer positioned at the tag
+     * @param array the builder of the parent array
+     */
+    static void readElement(ByteBuffer in, JsonArrayBuilder array) {
+        byte tag = in.get();
+        switch(tag) {
+            case NULL:
+                array.addNull();
+                break;
+            case TRUE:
+                array.add(true);
+                break;
+            case FALSE:
+                array.add(false);
+                break;
+            case LONG:
+                array.add(in.getLong());
+                break;
+            case DECIMAL:
+                array.add(new BigDecimal(readString(in)));
+                break;
+            case STRING:
+                array.add(readString(in));
+                break;
+            case ARRAY:
+                array.add(readArray(in));
+                break;
+            case OBJECT:
+                array.add(readObject(in));
+                break;
+            default: throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Reads the elements of an array
+     * @param in the buffer positioned right after the ARRAY tag
+     * @return the builder holding the elements
+     */
+    static JsonArrayBuilder readArray(ByteBuffer in) {
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        int length = in.getInt();
+        for (int i = 0; i < length; i++) {
+            readElement(in, array);
+        }
+        return array;
+    }
+
+    /**
+     * Reads the members of an object
+     * @param in the buffer positioned right after the OBJECT tag
+     * @return the builder holding the members
+     */
+    static JsonObjectBuilder readObject(ByteBuffer in) {
+        JsonObjectBuilder object = Json.createObjectBuilder();
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            readMember(in, object, readName(in));
+        }
+        return object;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string
+     * @param in the buffer positioned at the length
+     * @return the string
+     */
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+
+    /**
+     * Reads a member name
+     * @param in the buffer positioned at the name length
+     * @return the name
+     */
+    static String readName(ByteBuffer in) {
+        int length = in.get() & 0xFF;
+        String name = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return name;
+    }
+
+    /*----- Zero-copy lookups -----*/
+
+    /**
+     * Finds a member of the "parameters" object of a binary message
+     * @param message the binary message
+     * @param name the name of the parameter, which must be ASCII
+     * @return the offset of the parameter's tag, or -1 if it isn't there
+     */
+    public static int findParameter(byte[] message, String name) {
+        int offset = 2;
+        if (message[1] == 0) offset += 4 + ByteBuffer.wrap(message, offset, 4).getInt();
+
+        int parameters = findMember(message, offset, "parameters");
+        return parameters < 0 || message[parameters] != OBJECT ? -1 : findMember(message, parameters, name);
+    }
+
+    /**
+     * Finds a member of an object by comparing names in place
+     * @param message the binary message
+     * @param offset the offset of the object's tag
+     * @param name the name of the member, which must be ASCII
+     * @return the offset of the member's tag, or -1 if it isn't there
+     */
+    static int findMember(byte[] message, int offset, String name) {
+        ByteBuffer in = ByteBuffer.wrap(message);
+        in.position(offset + 1);
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int length = in.get() & 0xFF;
+            int start = in.position();
+            in.position(start + length);
+            if (nameEquals(message, start, length, name)) return in.position();
+            skipValue(in);
+        }
+        return -1;
+    }
+
+    /**
+     * Compares a member name in the message with an ASCII string without decoding it
+     * @param message the binary message
+     * @param start the offset of the name
+     * @param length the length of the name in bytes
+     * @param name the name to compare with
+     * @return true if they are equal
+     */
+    static boolean nameEquals(byte[] message, int start, int length, String name) {
+        if (length != name.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (message[start + i] != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves past one tagged value
+     * @param in the buffer positioned at the tag
+     */
+    static void skipValue(ByteBuffer in) {
+        byte tag = in.get();
+        switch(tag) {
+            case NULL:
+            case TRUE:
+            case FALSE:
+                break;
+            case LONG:
+                in.position(in.position() + 8);
+                break;
+            case DECIMAL:
+            case STRING:
+                int length = in.getInt();
+                in.position(in.position() + length);
+                break;
+            case ARRAY:
+                int size = in.getInt();
+                for (int i = 0; i < size; i++) {
+                    skipValue(in);
+                }
+                break;
+            case OBJECT:
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    int nameLength = in.get() & 0xFF;
+                    in.position(in.position() + nameLength);
+                    skipValue(in);
+                }
+                break;
+            default: throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Compares a string parameter with the given UTF-8 bytes without decoding it
+     * @param message the binary message
+     * @param name the name of the parameter
+     * @param utf8 the bytes to compare with
+     * @return true if the parameter is a string with exactly those bytes
+     */
+    public static boolean parameterEquals(byte[] message, String name, byte[] utf8) {
+        int offset = findParameter(message, name);
+        if (offset < 0 || message[offset] != STRING) return false;
+
+        int length = ByteBuffer.wrap(message, offset + 1, 4).getInt();
+        if (length != utf8.length) return false;
+        for (int i = 0; i < length; i++) {
+            if (message[offset + 5 + i] != utf8[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks a boolean parameter without decoding the rest of the message
+     * @param message the binary message
+     * @param name the name of the parameter
+     * @return true if the parameter is there and true
+     */
+    public static boolean parameterIsTrue(byte[] message, String name) {
+        int offset = findParameter(message, name);
+        return offset >= 0 && message[offset] == TRUE;
+    }
+
+    /**
+     * Adds one to a numeric parameter in place. Numbers take a fixed 8 bytes, so the message keeps its size.
+     * @param message the binary message
+     * @param name the name of the parameter
+     * @return false if the parameter isn't there or isn't a whole number
+     */
+    public static boolean incrementParameter(byte[] message, String name) {
+        int offset = findParameter(message, name);
+        if (offset < 0 || message[offset] != LONG) return false;
+
+        ByteBuffer value = ByteBuffer.wrap(message);
+        value.putLong(offset + 1, value.getLong(offset + 1) + 1);
+        return true;
+    }
+
+    /**
+     * Reads one string parameter without decoding the rest of the message
+     * @param message the binary message
+     * @param name the name of the parameter
+     * @return the value, or null if the parameter isn't a string
+     */
+    public static String getStringParameter(byte[] message, String name) {
+        int offset = findParameter(message, name);
+        if (offset < 0 || message[offset] != STRING) return null;
+        return readString(ByteBuffer.wrap(message, offset + 1, message.length - offset - 1));
+    }
+}
\ No newline at end of file
@@ -1,26 +1,133 @@
 import javax.json.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.util.concurrent.Semaphore;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 public class Chat {
     /*----- Data members -----*/
 
+    // How long leaving waits for queued sends
+    static final long DRAIN_TIMEOUT_MS = 5000;
+
+    // How long joining waits for the ACCEPT
+    static final long JOIN_TIMEOUT_MS = 10000;
+
+    // How long an async send may take, waiting for room in the queue included
+    static final long SEND_TIMEOUT_MS = 10000;
+
+    // Fails async sends that ran out of time. The timeouts of sends that finished are cancelled, and dropped right away.
+    static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, task -> {
+        Thread thread = new Thread(task, "send-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
+    // Size of the address cache and how long its entries are trusted
+    static final int DIRECTORY_CAPACITY = 1024;
+    static final long DIRECTORY_TTL_MS = 60000;
+
+    // Address other clients reach this one at when it isn't given
+    static final String DEFAULT_HOST = "localhost";
+
     // Client info
     String alias;
     int myPort;
 
-    // Successor info
-    String ipSuccessor;
-    int portSuccessor;
+    // Address other clients reach this one at. The ring may correct it when the client joins from another machine.
+    volatile String host;
+
+    // Listen on the host address only instead of on every interface, e.g. to run clients on loopback aliases like 127.0.0.2
+    boolean bindToHost;
+
+    // Successor and predecessor, swapped as a whole so readers never see half of a change
+    AtomicReference<Neighbours> neighbours;
+
+    // Whether the client is joining, in a ring or leaving, and the changes waiting to be applied
+    Membership membership;
+
+    // Position on the identifier ring, only used when routing with fingers or both ways
+    long id;
+    FingerTable fingers;
+
+    // Order the ring by alias hash and send PUTs through the predecessor when that way around is shorter
+    boolean bidirectional;
+
+    // Long-lived framed connections to the successor and predecessor, keyed by "ip:port"
+    boolean persistentConnections;
+    Map<String, PeerConnection> connections;
+
+    // Offer the binary codec to peers on framed connections
+    boolean binaryCodec;
+
+    // Coalesce PUTs to pooled peers into batch frames
+    boolean batching;
+
+    // Runs handlers and sends on virtual threads, null when everything runs on the server and client threads
+    Dispatcher dispatcher;
+
+    // Runs the handlers and sends of control messages when there is a dispatcher, with permits of its own
+    Dispatcher controlDispatcher;
+
+    // Addresses of other clients learned from delivery acknowledgements, null when PUTs always go around the ring
+    AddressCache directory;
+
+    // Called with every PUT that arrives at this client, null when nothing is listening
+    Consumer<JsonObject> deliveryListener;
+
+    // Counters and histograms of the traffic, null when they aren't collected
+    Metrics metrics;
+
+    // Runs async sends when there is no dispatcher, created on the first one
+    Dispatcher asyncDispatcher;
+
+    // Number of successors known through heartbeats, the successor included, 0 when failures aren't detected
+    int successorListSize;
+
+    // PUTs kept for receivers that aren't in the ring, null when such PUTs go back to their sender
+    MessageLog store;
+
+    // Local port of the control socket when running as a daemon, 0 when the user drives the client through its menu
+    int controlPort;
+
+    // Files sent and received in chunks
+    Attachments attachments;
+
+    // Deflate the chunks of files this client sends
+    boolean compressChunks;
+
+    // Called with the sender and the saved file of every file that arrives at this client, null when nothing is listening
+    BiConsumer<String, File> attachmentListener;
 
-    // Predecessor info
-    String ipPredecessor;
-    int portPredecessor;
+    // Numbers sent PUTs and sends them again until they are acknowledged, null when PUTs are sent once
+    Outbox outbox;
 
-    // Lock
-    Semaphore dataSemaphore;
+    // Puts numbered PUTs back in order and drops copies, null when PUTs are shown as they arrive
+    Inbox inbox;
+
+    // Who is in the chat room, kept up to date by gossip, null when only the neighbours are known
+    Roster roster;
+
+    // Encrypts the connections to and from peers and checks their certificates, null when traffic is plaintext
+    TlsContext tls;
 
     /*----- Accessors -----*/
 
@@ -32,6 +139,14 @@ public class Chat {
         return this.alias;
     }
 
+    /**
+     * Host accessor
+     * @return the address other clients reach this client at
+     */
+    public String getHost() {
+        return this.host;
+    }
+
     /**
      * Port accessor
      * @return the port of the client
@@ -40,12 +155,20 @@ public class Chat {
         return this.myPort;
     }
 
+    /**
+     * Neighbours accessor. Read several values from one snapshot to get values that belong together.
+     * @return the current snapshot of the client's successor and predecessor
+     */
+    public Neighbours getNeighbours() {
+        return this.neighbours.get();
+    }
+
     /**
      * IP successor accessor
      * @return the IP address of the client's successor
      */
     public String getIpSuccessor() {
-        return this.ipSuccessor;
+        return this.neighbours.get().ipSuccessor;
     }
 
     /**
@@ -53,7 +176,7 @@ public class Chat {
      * @return the port of the client's successor
      */
     public int getPortSuccessor() {
-        return this.portSuccessor;
+        return this.neighbours.get().portSuccessor;
     }
 
     /**
@@ -61,7 +184,7 @@ public class Chat {
      * @return the IP address of the client's predecessor
      */
     public String getIpPredecessor() {
-        return this.ipPredecessor;
+        return this.neighbours.get().ipPredecessor;
     }
 
     /**
@@ -69,105 +192,170 @@ public class Chat {
      * @return the port of the client's predecessor
      */
     public int getPortPredecessor() {
-        return this.portPredecessor;
+        return this.neighbours.get().portPredecessor;
+    }
+
+    /**
+     * ID accessor
+     * @return the node ID of the client, the hash of its alias
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * ID successor accessor
+     * @return the node ID of the client's successor
+     */
+    public long getIdSuccessor() {
+        return this.neighbours.get().idSuccessor;
+    }
+
+    /**
+     * ID predecessor accessor
+     * @return the node ID of the client's predecessor
+     */
+    public long getIdPredecessor() {
+        return this.neighbours.get().idPredecessor;
     }
 
     /*----- Mutators -----*/
 
     /**
-     * IP successor mutator. This method blocks until it can acquire the lock.
+     * Successor mutator. The successor's node ID stays the same.
      * @param newIp the new IP address of the client's successor
+     * @param newPort the new port of the client's successor
      */
-    public void updateIpSuccessor(String newIp) {
-        try {
-            dataSemaphore.acquire();
-            this.ipSuccessor = newIp;
-        } catch(InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            dataSemaphore.release();
-        }
+    public void updateSuccessor(String newIp, int newPort) {
+        update(current -> current.withSuccessor(newIp, newPort, current.idSuccessor));
     }
 
     /**
-     * Port successor mutator. This method blocks until it can acquire the lock.
+     * Successor mutator
+     * @param newIp the new IP address of the client's successor
      * @param newPort the new port of the client's successor
+     * @param newId the new node ID of the client's successor
      */
-    public void updatePortSuccessor(int newPort) {
-        try {
-            dataSemaphore.acquire();
-            this.portSuccessor = newPort;
-        } catch(InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            dataSemaphore.release();
-        }
+    public void updateSuccessor(String newIp, int newPort, long newId) {
+        update(current -> current.withSuccessor(newIp, newPort, newId));
+    }
+
+    /**
+     * Predecessor mutator. The predecessor's node ID stays the same.
+     * @param newIp the new IP address of the client's predecessor
+     * @param newPort the new port of the client's predecessor
+     */
+    public void updatePredecessor(String newIp, int newPort) {
+        update(current -> current.withPredecessor(newIp, newPort, current.idPredecessor));
     }
 
     /**
-     * IP predecessor mutator. This method blocks until it can acquire the lock.
+     * Predecessor mutator
      * @param newIp the new IP address of the client's predecessor
+     * @param newPort the new port of the client's predecessor
+     * @param newId the new node ID of the client's predecessor
      */
-    public void updateIpPredecessor(String newIp) {
+    public void updatePredecessor(String newIp, int newPort, long newId) {
+        update(current -> current.withPredecessor(newIp, newPort, newId));
+    }
+
+    /**
+     * Joins the ring of another client and waits until it accepts
+     * @param ip the IP address of the client to join
+     * @param port the port of the client to join
+     * @return true if this client was accepted
+     */
+    public boolean joinRing(String ip, int port) {
+        if (!this.membership.beginJoin(getNeighbours(), getSelf())) {
+            System.out.println("You are already in a chat room");
+            return false;
+        }
+
         try {
-            dataSemaphore.acquire();
-            this.ipPredecessor = newIp;
+            JsonObject joinJson = createMessage_JOIN(this.alias, this.host, this.myPort);
+            if (this.roster != null) {
+                joinJson = withParameter(joinJson, "incarnation", this.roster.join(this.host, this.myPort));
+            }
+            sendAsync(joinJson, ip, port).join();
+            if (this.membership.awaitJoin(JOIN_TIMEOUT_MS)) return true;
+            System.out.printf("%s:%d didn't accept you in time%n", ip, port);
+        } catch(CompletionException e) {
+            System.out.printf("Couldn't reach %s:%d: %s%n", ip, port, e.getCause().getMessage());
         } catch(InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            dataSemaphore.release();
+            Thread.currentThread().interrupt();
         }
+        this.membership.endJoin();
+        return false;
     }
 
     /**
-     * Port predecessor mutator. This method blocks until it can acquire the lock.
-     * @param newPort the new port of the client's predecessor
+     * Joins the ring of another client and waits until it accepts
+     * @param address "host:port" of the client to join, or just its port if it runs on this machine
+     * @return true if this client was accepted
      */
-    public void updatePortPredecessor(int newPort) {
+    public boolean joinRing(String address) {
+        int colon = address.lastIndexOf(':');
         try {
-            dataSemaphore.acquire();
-            this.portPredecessor = newPort;
-        } catch(InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            dataSemaphore.release();
+            if (colon < 0) return joinRing(DEFAULT_HOST, Integer.parseInt(address.trim()));
+            return joinRing(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+        } catch(NumberFormatException e) {
+            System.out.printf("%s isn't a port or host:port%n", address);
+            return false;
         }
     }
 
+    /**
+     * Swaps in the next snapshot of the neighbours. The change is retried on the latest snapshot
+     * if another thread swapped first, so it must not have side effects.
+     * @param change computes the next snapshot from the current one
+     * @return the snapshot that was swapped in
+     */
+    Neighbours update(UnaryOperator<Neighbours> change) {
+        Neighbours updated = this.neighbours.updateAndGet(change);
+        releaseStaleConnections();
+        return updated;
+    }
+
     /**
     * Creates a JSON message for JOINs
     * @param alias the desired client to join
+    * @param myIp the address the client advertises, which the client it sends the JOIN to may correct
     * @param myPort the source port of the client who wishes to join
     * @return Json object containing type and parameters
     */
-    public JsonObject createMessage_JOIN(String alias, int myPort) {
+    public JsonObject createMessage_JOIN(String alias, String myIp, int myPort) {
         JsonObject joinJson = Json.createObjectBuilder()
             .add("type", "JOIN")
             .add("parameters", Json.createObjectBuilder()
                 .add("myAlias", alias)
+                .add("myIp", myIp)
                 .add("myPort", myPort))
             .build();
         return joinJson;
     }
 
     /**
-    * Creates a JSON message for ACCEPTs
-    * @param ip the source ip of the client who was accepted
-    * @param port the source port of the client was accepted
+    * Creates a JSON message for ACCEPTs. The client accepting becomes the successor of the client accepted.
+    * @param ip the ip of the accepted client's predecessor
+    * @param port the port of the accepted client's predecessor
+    * @param ipJoiner the address the accepted client is known by in the ring
     * @return Json object containing type and parameters
     */
-    public JsonObject createMessage_ACCEPT(String ip, int port) {
+    public JsonObject createMessage_ACCEPT(String ip, int port, String ipJoiner) {
         JsonObject acceptJson = Json.createObjectBuilder()
             .add("type", "ACCEPT")
             .add("parameters", Json.createObjectBuilder()
                 .add("ipPred", ip)
-                .add("portPred", port))
+                .add("portPred", port)
+                .add("ipSucc", this.host)
+                .add("portSucc", this.myPort)
+                .add("ipJoiner", ipJoiner))
             .build();
         return acceptJson;
     }
 
     /**
-    * Creates a JSON message for NEW SUCCESSORs
+    * Creates a JSON message for NEW SUCCESSORs, which only apply at the client whose successor this client is
     * @param ip the new successor's ip address
     * @param port the new successor's port
     * @return Json object containing type and parameters
@@ -177,7 +365,9 @@ public class Chat {
             .add("type", "NEWSUCCESSOR")
             .add("parameters", Json.createObjectBuilder()
                 .add("ipSuccessor", ip)
-                .add("portSuccessor", port))
+                .add("portSuccessor", port)
+                .add("ipFrom", this.host)
+                .add("portFrom", this.myPort))
             .build();
         return newSuccessorJson;
     }
@@ -201,7 +391,153 @@ public class Chat {
     }
 
     /**
-    * Creates a JSON message for LEAVEs
+    * Creates a JSON message for CHUNKs, which carry one part of a file and are routed like PUTs
+    * @param aliasSender the name of the original client sender
+    * @param aliasReceiver the name of the destination client
+    * @param transfer the ID the chunks of one file share
+    * @param name the name of the file
+    * @param index the position of the chunk in the file, counting chunks
+    * @param count the number of chunks in the file
+    * @param size the number of bytes of the file in the chunk
+    * @param data the bytes of the chunk in Base64, deflated if compressed is set
+    * @param compressed whether the bytes are deflated
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_CHUNK(String aliasSender, String aliasReceiver, String transfer, String name, int index, int count,
+                                          int size, String data, boolean compressed) {
+        JsonObject chunkJson = Json.createObjectBuilder()
+            .add("type", "CHUNK")
+            .add("parameters", Json.createObjectBuilder()
+                .add("aliasSender", aliasSender)
+                .add("aliasReceiver", aliasReceiver)
+                .add("transfer", transfer)
+                .add("name", name)
+                .add("index", index)
+                .add("count", count)
+                .add("size", size)
+                .add("compressed", compressed)
+                .add("data", data))
+            .build();
+        return chunkJson;
+    }
+
+    /**
+    * Creates a JSON message for PUTs that tells the receiver where the sender can be reached
+    * @param aliasSender the name of the original client sender
+    * @param aliasReceiver the name of the destination client
+    * @param message the message sender wants receiver to see
+    * @param ipSender the ip of the original client sender
+    * @param portSender the port of the original client sender
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_PUT(String aliasSender, String aliasReceiver, String message, String ipSender, int portSender) {
+        JsonObject putJson = Json.createObjectBuilder()
+            .add("type", "PUT")
+            .add("parameters", Json.createObjectBuilder()
+                .add("aliasSender", aliasSender)
+                .add("aliasReceiver", aliasReceiver)
+                .add("message", message)
+                .add("ipSender", ipSender)
+                .add("portSender", portSender))
+            .build();
+        return putJson;
+    }
+
+    /**
+    * Creates a JSON message for DELIVEREDs, which tell the sender of a PUT where the receiver can be reached
+    * @param alias the name of the client who received the PUT
+    * @param ip the ip of the client who received the PUT
+    * @param port the port of the client who received the PUT
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_DELIVERED(String alias, String ip, int port) {
+        JsonObject deliveredJson = Json.createObjectBuilder()
+            .add("type", "DELIVERED")
+            .add("parameters", Json.createObjectBuilder()
+                .add("alias", alias)
+                .add("ip", ip)
+                .add("port", port))
+            .build();
+        return deliveredJson;
+    }
+
+    /**
+    * Creates a JSON message for ACKs, which tell the sender of a numbered PUT that it arrived and where the receiver can be reached
+    * @param alias the name of the client who received the PUT
+    * @param ip the ip of the client who received the PUT
+    * @param port the port of the client who received the PUT
+    * @param session the session of the sender the PUT was numbered in
+    * @param seq the number of the PUT
+    * @param upTo the number up to which the receiver has every PUT from the sender, or 0
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_ACK(String alias, String ip, int port, long session, long seq, long upTo) {
+        JsonObject ackJson = Json.createObjectBuilder()
+            .add("type", "ACK")
+            .add("parameters", Json.createObjectBuilder()
+                .add("alias", alias)
+                .add("ip", ip)
+                .add("port", port)
+                .add("session", session)
+                .add("seq", seq)
+                .add("upTo", upTo))
+            .build();
+        return ackJson;
+    }
+
+    /**
+    * Creates a JSON message for MULTICASTs, which go around the ring once and reach every receiver on the way
+    * @param aliasSender the name of the original client sender
+    * @param aliasReceivers the names of the destination clients
+    * @param message the message sender wants receivers to see
+    * @param ipSender the ip of the original client sender
+    * @param portSender the port of the original client sender
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_MULTICAST(String aliasSender, Collection<String> aliasReceivers, String message, String ipSender, int portSender) {
+        JsonArrayBuilder receivers = Json.createArrayBuilder();
+        for (String aliasReceiver : aliasReceivers) {
+            receivers.add(aliasReceiver);
+        }
+        JsonObject multicastJson = Json.createObjectBuilder()
+            .add("type", "MULTICAST")
+            .add("parameters", Json.createObjectBuilder()
+                .add("aliasSender", aliasSender)
+                .add("aliasReceivers", receivers)
+                .add("all", false)
+                .add("delivered", Json.createArrayBuilder())
+                .add("message", message)
+                .add("ipSender", ipSender)
+                .add("portSender", portSender))
+            .build();
+        return multicastJson;
+    }
+
+    /**
+    * Creates a JSON message for MULTICASTs to every client in the ring
+    * @param aliasSender the name of the original client sender
+    * @param message the message sender wants everyone to see
+    * @param ipSender the ip of the original client sender
+    * @param portSender the port of the original client sender
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_BROADCAST(String aliasSender, String message, String ipSender, int portSender) {
+        JsonObject broadcastJson = Json.createObjectBuilder()
+            .add("type", "MULTICAST")
+            .add("parameters", Json.createObjectBuilder()
+                .add("aliasSender", aliasSender)
+                .add("aliasReceivers", Json.createArrayBuilder())
+                .add("all", true)
+                .add("delivered", Json.createArrayBuilder())
+                .add("message", message)
+                .add("ipSender", ipSender)
+                .add("portSender", portSender))
+            .build();
+        return broadcastJson;
+    }
+
+    /**
+    * Creates a JSON message for LEAVEs, which only apply at the client whose predecessor this client is
     * @param ip the source ip of the client who is leaving
     * @param port the source port of the client who is leaving
     * @return Json object containing type and parameters
@@ -211,11 +547,317 @@ public class Chat {
             .add("type", "LEAVE")
             .add("parameters", Json.createObjectBuilder()
                 .add("ipPred", ip)
-                .add("portPred", port))
+                .add("portPred", port)
+                .add("ipFrom", this.host)
+                .add("portFrom", this.myPort))
+            .build();
+        return leaveJson;
+    }
+
+    /**
+    * Creates a JSON message for ACCEPTs when routing with fingers
+    * @param ip the ip of the accepted client's predecessor
+    * @param port the port of the accepted client's predecessor
+    * @param id the node ID of the accepted client's predecessor
+    * @param ipSucc the ip of the accepting client, which becomes the successor
+    * @param portSucc the port of the accepting client
+    * @param idSucc the node ID of the accepting client
+    * @param ipJoiner the address the accepted client is known by in the ring
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_ACCEPT(String ip, int port, long id, String ipSucc, int portSucc, long idSucc, String ipJoiner) {
+        JsonObject acceptJson = Json.createObjectBuilder()
+            .add("type", "ACCEPT")
+            .add("parameters", Json.createObjectBuilder()
+                .add("ipPred", ip)
+                .add("portPred", port)
+                .add("idPred", id)
+                .add("ipSucc", ipSucc)
+                .add("portSucc", portSucc)
+                .add("idSucc", idSucc)
+                .add("ipJoiner", ipJoiner))
+            .build();
+        return acceptJson;
+    }
+
+    /**
+    * Creates a JSON message for NEW SUCCESSORs when routing with fingers
+    * @param ip the new successor's ip address
+    * @param port the new successor's port
+    * @param id the new successor's node ID
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_NEWSUCCESSOR(String ip, int port, long id) {
+        JsonObject newSuccessorJson = Json.createObjectBuilder()
+            .add("type", "NEWSUCCESSOR")
+            .add("parameters", Json.createObjectBuilder()
+                .add("ipSuccessor", ip)
+                .add("portSuccessor", port)
+                .add("idSuccessor", id)
+                .add("ipFrom", this.host)
+                .add("portFrom", this.myPort))
+            .build();
+        return newSuccessorJson;
+    }
+
+    /**
+    * Creates a JSON message for LEAVEs when routing with fingers
+    * @param ip the ip of the leaving client's predecessor
+    * @param port the port of the leaving client's predecessor
+    * @param id the node ID of the leaving client's predecessor
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_LEAVE(String ip, int port, long id) {
+        JsonObject leaveJson = Json.createObjectBuilder()
+            .add("type", "LEAVE")
+            .add("parameters", Json.createObjectBuilder()
+                .add("ipPred", ip)
+                .add("portPred", port)
+                .add("idPred", id)
+                .add("ipFrom", this.host)
+                .add("portFrom", this.myPort))
             .build();
         return leaveJson;
     }
 
+    /**
+    * Creates a JSON message for FINDs, which look up the client responsible for a key to fix a finger
+    * @param key the ID being looked up
+    * @param index the index of the finger being fixed
+    * @param ip the ip of the client asking
+    * @param port the port of the client asking
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_FIND(long key, int index, String ip, int port) {
+        JsonObject findJson = Json.createObjectBuilder()
+            .add("type", "FIND")
+            .add("parameters", Json.createObjectBuilder()
+                .add("key", key)
+                .add("index", index)
+                .add("ipOrigin", ip)
+                .add("portOrigin", port))
+            .build();
+        return findJson;
+    }
+
+    /**
+    * Creates a JSON message for FOUNDs, the answer to a FIND
+    * @param index the index of the finger being fixed
+    * @param id the node ID of the client responsible for the key
+    * @param ip the ip of the client responsible for the key
+    * @param port the port of the client responsible for the key
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_FOUND(int index, long id, String ip, int port) {
+        JsonObject foundJson = Json.createObjectBuilder()
+            .add("type", "FOUND")
+            .add("parameters", Json.createObjectBuilder()
+                .add("index", index)
+                .add("id", id)
+                .add("ip", ip)
+                .add("port", port))
+            .build();
+        return foundJson;
+    }
+
+    /**
+    * Creates a JSON message for ARRIVEDs, which go once around the ring after a join to collect the PUTs kept for the new client
+    * @param alias the name of the client who joined
+    * @param ip the ip of the client who joined
+    * @param port the port of the client who joined
+    * @param ipOrigin the ip of the client who accepted the join
+    * @param portOrigin the port of the client who accepted the join
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_ARRIVED(String alias, String ip, int port, String ipOrigin, int portOrigin) {
+        JsonObject arrivedJson = Json.createObjectBuilder()
+            .add("type", "ARRIVED")
+            .add("parameters", Json.createObjectBuilder()
+                .add("alias", alias)
+                .add("ip", ip)
+                .add("port", port)
+                .add("ipOrigin", ipOrigin)
+                .add("portOrigin", portOrigin))
+            .build();
+        return arrivedJson;
+    }
+
+    /**
+    * Creates a JSON message for PINGs, the heartbeat a client sends its successor
+    * @param ip the ip of the client sending the heartbeat
+    * @param port the port of the client sending the heartbeat
+    * @param id the node ID of the client sending the heartbeat
+    * @return Json object containing type and parameters
+    */
+    public JsonObject createMessage_PING(String ip, int port, long id) {
+        JsonObject pingJson = Json.createObjectBuilder()
+            .add("type", "PING")
+            .add("parameters", Json.createObjectBuilder()
+                .add("ip", ip)
+                .add("port", port)
+                .add("id", id))
+            .build();
+        return pingJson;
+    }
+
+    /**
+    * Creates a JSON message for PONGs, the answer to a PING
+    * @param neighbours the neighbours of the client answering
+    * @return Json object containing type and parameters, with the client's predecessor and the clients after it
+    */
+    public JsonObject createMessage_PONG(Neighbours neighbours) {
+        JsonArrayBuilder successors = Json.createArrayBuilder()
+            .add(toJson(neighbours.getSuccessor()));
+        for (FingerTable.Finger successor : neighbours.successors) {
+            successors.add(toJson(successor));
+        }
+        JsonObject pongJson = Json.createObjectBuilder()
+            .add("type", "PONG")
+            .add("parameters", Json.createObjectBuilder()
+                .add("ip", this.host)
+                .add("port", this.myPort)
+                .add("ipPred", neighbours.ipPredecessor)
+                .add("portPred", neighbours.portPredecessor)
+                .add("idPred", neighbours.idPredecessor)
+                .add("successors", successors))
+            .build();
+        return pongJson;
+    }
+
+    /**
+     * Converts a finger to JSON
+     * @param finger the finger
+     * @return Json object containing the finger's ip, port and node ID
+     */
+    static JsonObject toJson(FingerTable.Finger finger) {
+        return Json.createObjectBuilder()
+            .add("ip", finger.ip)
+            .add("port", finger.port)
+            .add("id", finger.id)
+            .build();
+    }
+
+    /**
+     * Copies a message with one parameter added or replaced
+     * @param jsonMessage the message to copy
+     * @param name the name of the parameter
+     * @param value the value of the parameter
+     * @return the new message
+     */
+    public static JsonObject withParameter(JsonObject jsonMessage, String name, JsonValue value) {
+        JsonObjectBuilder parameters = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> parameter : jsonMessage.getJsonObject("parameters").entrySet()) {
+            if (!parameter.getKey().equals(name)) parameters.add(parameter.getKey(), parameter.getValue());
+        }
+        parameters.add(name, value);
+
+        JsonObjectBuilder message = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> member : jsonMessage.entrySet()) {
+            if (!member.getKey().equals("parameters")) message.add(member.getKey(), member.getValue());
+        }
+        return message.add("parameters", parameters).build();
+    }
+
+    /**
+     * Copies a message with one numeric parameter added or replaced
+     * @param jsonMessage the message to copy
+     * @param name the name of the parameter
+     * @param value the value of the parameter
+     * @return the new message
+     */
+    public static JsonObject withParameter(JsonObject jsonMessage, String name, long value) {
+        return withParameter(jsonMessage, name, Json.createArrayBuilder().add(value).build().get(0));
+    }
+
+    /**
+     * Host mutator. Only a client that is alone may change its address, since its neighbours point at itself.
+     * @param host the address other clients reach this client at
+     */
+    public void setHost(String host) {
+        this.host = host;
+        update(current -> Neighbours.alone(host, this.myPort, this.id));
+        if (this.roster != null) {
+            this.roster.join(host, this.myPort);
+        }
+    }
+
+    /**
+     * Host mutator for a client that goes by a local-only address, when a client on another machine connects to it.
+     * The address that client reached it at works from outside its machine, so the client goes by it from now on:
+     * in the ACCEPTs it sends and in every other message naming it. If it is alone, its neighbours move along.
+     * @param address the local address of the connection from the other machine
+     */
+    public synchronized void learnHost(String address) {
+        String local = this.host;
+        if (!Server.isLocal(local) || Server.isLocal(address)) return;
+
+        System.out.printf("A client on another machine reached you at %s, the chat knows you by that address now%n", address);
+        this.host = address;
+        Neighbours neighbours = update(current -> current.isSuccessor(local, this.myPort) ? Neighbours.alone(address, this.myPort, this.id) : current);
+        if (this.fingers != null && neighbours.isSuccessor(address, this.myPort)) {
+            this.fingers.fill(getSelf());
+        }
+        if (this.roster != null) {
+            this.roster.join(address, this.myPort);
+        }
+    }
+
+    /**
+     * Finger accessor for the client itself
+     * @return a finger pointing at this client
+     */
+    public FingerTable.Finger getSelf() {
+        return new FingerTable.Finger(this.id, this.host, this.myPort);
+    }
+
+    /**
+     * Finger accessor for the successor
+     * @return a finger pointing at the client's successor
+     */
+    public FingerTable.Finger getSuccessor() {
+        return this.neighbours.get().getSuccessor();
+    }
+
+    /**
+     * Routing accessor
+     * @return true if the ring is ordered by alias hash and PUTs are routed towards the hash of the receiver
+     */
+    public boolean routesByHash() {
+        return this.fingers != null || this.bidirectional;
+    }
+
+    /**
+     * Picks the next hop towards a key on the identifier ring.
+     * The successor is used once the key lies between this client and it, otherwise the closest preceding finger.
+     * When routing both ways and the way ahead goes from successor to successor, the predecessor is used instead
+     * if the key is closer behind it. A finger skips many clients at once, so it always beats the predecessor.
+     * A message never turns around on the way, since every hop leaves it further from the key the other way.
+     * @param key the ID to route to
+     * @return the client to send to, or null if this client is responsible for the key
+     */
+    public FingerTable.Finger nextHop(long key) {
+        Neighbours neighbours = this.neighbours.get();
+        if (FingerTable.between(key, neighbours.idPredecessor, this.id)) return null;
+        if (FingerTable.between(key, this.id, neighbours.idSuccessor)) return neighbours.getSuccessor();
+
+        FingerTable.Finger finger = this.fingers == null ? null : this.fingers.closestPreceding(key);
+        if (finger != null && finger.id != neighbours.idSuccessor) return finger;
+
+        if (this.bidirectional && FingerTable.distance(key, neighbours.idPredecessor) < FingerTable.distance(neighbours.idSuccessor, key)) {
+            return neighbours.getPredecessor();
+        }
+        return neighbours.getSuccessor();
+    }
+
+    /**
+     * Picks the next hop for a message to another client
+     * @param alias the alias of the receiver
+     * @return the client to send to, or null if the ring is ordered by alias hash and this client is responsible for the alias
+     */
+    public FingerTable.Finger nextHop(String alias) {
+        return routesByHash() ? nextHop(FingerTable.hash(alias)) : getSuccessor();
+    }
+
     /**
      * Sends a JSON message over a socket connection
      * @param jsonMessage the JSON to send
@@ -223,17 +865,385 @@ public class Chat {
      * @param port the port to connect to
      */
     public void sendJson(JsonObject jsonMessage, String ip, int port) {
+        send(jsonMessage, null, ip, port);
+    }
+
+    /**
+     * Forwards a message that arrived in binary form without decoding it.
+     * It is only converted back to JSON if the next peer doesn't speak the binary codec.
+     * @param binaryMessage the message as received
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     */
+    public void forwardBinary(byte[] binaryMessage, String ip, int port) {
+        send(null, binaryMessage, ip, port);
+    }
+
+    /**
+     * Sends a message given either as JSON or in binary form
+     * @param jsonMessage the JSON to send, or null if binaryMessage is given
+     * @param binaryMessage the binary message to send, or null if jsonMessage is given
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     */
+    void send(JsonObject jsonMessage, byte[] binaryMessage, String ip, int port) {
+        if (this.dispatcher != null) {
+            // Send from a virtual thread so the caller can go on, keeping the messages for one destination in order.
+            // Control messages take a lane of their own, so they don't wait behind the PUTs queued for the destination.
+            Dispatcher lane = isBulk(getType(jsonMessage, binaryMessage)) ? this.dispatcher : this.controlDispatcher;
+            lane.execute(ip + ":" + port, () -> post(jsonMessage, binaryMessage, ip, port));
+            return;
+        }
+        post(jsonMessage, binaryMessage, ip, port);
+    }
+
+    /**
+     * Sends a message on the calling thread, reporting a failure only on the console
+     * @param jsonMessage the JSON to send, or null if binaryMessage is given
+     * @param binaryMessage the binary message to send, or null if jsonMessage is given
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     */
+    void post(JsonObject jsonMessage, byte[] binaryMessage, String ip, int port) {
+        try {
+            transmit(jsonMessage, binaryMessage, ip, port, true);
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a message without blocking the caller. Messages to one destination go out in order, and at most
+     * Dispatcher.QUEUE_CAPACITY of them wait at a time: when the destination falls that far behind, the caller blocks
+     * until there is room again, for SEND_TIMEOUT_MS at most.
+     * @param jsonMessage the JSON to send
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     * @return a future that completes once the message is sent, or exceptionally with the IOException that
+     *         stopped it or a TimeoutException if it couldn't be sent within SEND_TIMEOUT_MS
+     */
+    public CompletableFuture<Void> sendAsync(JsonObject jsonMessage, String ip, int port) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        String destination = ip + ":" + port;
+        Runnable task = () -> {
+            // A message that timed out while queued is dropped rather than sent late
+            if (future.isDone()) return;
+            try {
+                transmit(jsonMessage, null, ip, port, true);
+                future.complete(null);
+            } catch(IOException e) {
+                future.completeExceptionally(e);
+            }
+        };
+
         try {
-            Socket socket = new Socket(ip, port);
-            ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream());
+            if (!getAsyncDispatcher(getType(jsonMessage, null)).offer(destination, task, SEND_TIMEOUT_MS)) {
+                future.completeExceptionally(new TimeoutException("Too many messages waiting for " + destination));
+                return future;
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
 
-            JsonWriter jsonWriter = Json.createWriter(oos);
-            jsonWriter.write(jsonMessage);
-            jsonWriter.close();
+        ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> future.completeExceptionally(new TimeoutException("No answer from " + destination)),
+            SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, e) -> timeout.cancel(false));
+        return future;
+    }
 
-            socket.close();
+    /**
+     * Async dispatcher accessor. Without --virtual-threads, async sends get a dispatcher of their own.
+     * @param type the type of the message to send, as control messages have their own lane with --virtual-threads
+     * @return the dispatcher that runs async sends
+     */
+    synchronized Dispatcher getAsyncDispatcher(String type) {
+        if (this.dispatcher != null) return isBulk(type) ? this.dispatcher : this.controlDispatcher;
+        if (this.asyncDispatcher == null) {
+            this.asyncDispatcher = new Dispatcher(Dispatcher.DEFAULT_CONCURRENCY);
+        }
+        return this.asyncDispatcher;
+    }
+
+    /**
+     * Writes the batches of all pooled connections without waiting for their linger time
+     */
+    public void flushBatches() {
+        for (Map.Entry<String, PeerConnection> entry : this.connections.entrySet()) {
+            PeerConnection connection = entry.getValue();
+            if (this.dispatcher != null) {
+                // Behind the sends already handed to the dispatcher, so they make it into the batch
+                this.dispatcher.execute(entry.getKey(), connection::flush);
+            } else {
+                connection.flush();
+            }
+        }
+    }
+
+    /**
+     * Sends a message on the calling thread, either framed or over a new socket
+     * @param jsonMessage the JSON to send, or null if binaryMessage is given
+     * @param binaryMessage the binary message to send, or null if jsonMessage is given
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     * @return true if the message was sent
+     */
+    public boolean deliver(JsonObject jsonMessage, byte[] binaryMessage, String ip, int port) {
+        try {
+            transmit(jsonMessage, binaryMessage, ip, port, false);
+            return true;
         } catch(IOException e) {
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Sends a message on the calling thread, framed or over a new socket, or queues it on the batch of a pooled connection
+     * @param jsonMessage the JSON to send, or null if binaryMessage is given
+     * @param binaryMessage the binary message to send, or null if jsonMessage is given
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     * @param batch true if a PUT may wait for others on the batch of the connection
+     * @throws IOException if the message can't be sent
+     */
+    void transmit(JsonObject jsonMessage, byte[] binaryMessage, String ip, int port, boolean batch) throws IOException {
+        long start = System.nanoTime();
+        boolean put = getType(jsonMessage, binaryMessage).equals("PUT");
+        if (batch && put && this.batching && isPooled(ip, port)) {
+            getConnection(ip, port).enqueue(jsonMessage, binaryMessage);
+        } else if (this.persistentConnections) {
+            sendFramed(jsonMessage, binaryMessage, ip, port);
+        } else {
+            sendLegacy(jsonMessage != null ? jsonMessage : BinaryCodec.decode(binaryMessage), ip, port);
+        }
+        recordSend(jsonMessage, binaryMessage, start);
+    }
+
+    /**
+     * Counts a message that went out
+     * @param jsonMessage the JSON that was sent, or null if binaryMessage is given
+     * @param binaryMessage the binary message that was sent, or null if jsonMessage is given
+     * @param start when sending started, from System.nanoTime
+     */
+    void recordSend(JsonObject jsonMessage, byte[] binaryMessage, long start) {
+        if (this.metrics == null) return;
+        this.metrics.sent(getType(jsonMessage, binaryMessage), System.nanoTime() - start);
+    }
+
+    /**
+     * Type accessor for a message in either form
+     * @param jsonMessage the message as JSON, or null if binaryMessage is given
+     * @param binaryMessage the message in binary form, or null if jsonMessage is given
+     * @return the type of the message
+     */
+    static String getType(JsonObject jsonMessage, byte[] binaryMessage) {
+        return jsonMessage != null ? jsonMessage.getString("type") : BinaryCodec.getType(binaryMessage);
+    }
+
+    /**
+     * Checks whether messages of a type are the traffic of the chat rather than control messages.
+     * Control messages keep the ring together, so they go ahead of the traffic where they can.
+     * @param type the type of a message
+     * @return true for PUTs, CHUNKs and MULTICASTs
+     */
+    static boolean isBulk(String type) {
+        switch(type) {
+            case "PUT":
+            case "CHUNK":
+            case "MULTICAST":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sends a JSON message over a new socket wrapped in an ObjectOutputStream
+     * @param jsonMessage the JSON to send
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     * @throws IOException if the message can't be sent
+     */
+    public void sendLegacy(JsonObject jsonMessage, String ip, int port) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+
+        JsonWriter jsonWriter = Json.createWriter(oos);
+        jsonWriter.write(jsonMessage);
+        jsonWriter.close();
+
+        Socket socket = openSocket(ip, port);
+        try {
+            socket.getOutputStream().write(bytes.toByteArray());
+        } finally {
+            socket.close();
+        }
+        if (this.metrics != null) this.metrics.sentBytes(bytes.size());
+    }
+
+    /**
+     * Opens a socket to a peer, counting the peers that can't be reached
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return the connected socket
+     * @throws IOException if the peer can't be reached
+     */
+    Socket openSocket(String ip, int port) throws IOException {
+        try {
+            return PeerConnection.open(this.tls, ip, port);
+        } catch(IOException e) {
+            if (this.metrics != null) this.metrics.connectFailed();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a message as a frame on a long-lived connection. A control message goes out ahead of the PUTs waiting in the batch.
+     * Connections to the successor, the predecessor and cached addresses are kept open, anything else is closed after the send.
+     * @param jsonMessage the JSON to send, or null if binaryMessage is given
+     * @param binaryMessage the binary message to send, or null if jsonMessage is given
+     * @param ip the IP address to send the message to
+     * @param port the port to connect to
+     * @throws IOException if the message can't be sent
+     */
+    public void sendFramed(JsonObject jsonMessage, byte[] binaryMessage, String ip, int port) throws IOException {
+        boolean pooled = isPooled(ip, port);
+        PeerConnection connection = pooled ? getConnection(ip, port) : newConnection(ip, port);
+
+        try {
+            connection.send(jsonMessage, binaryMessage, !isBulk(getType(jsonMessage, binaryMessage)));
+        } finally {
+            if (!pooled) connection.retire();
+        }
+    }
+
+    /**
+     * Connection accessor
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return the pooled connection to the peer, created if there is none yet
+     */
+    public PeerConnection getConnection(String ip, int port) {
+        return this.connections.computeIfAbsent(ip + ":" + port, key -> newConnection(ip, port));
+    }
+
+    /**
+     * Creates a connection that offers the features enabled on this client
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return the connection, not opened yet
+     */
+    PeerConnection newConnection(String ip, int port) {
+        int version = this.batching ? PeerConnection.BATCH_VERSION
+            : this.binaryCodec ? PeerConnection.BINARY_VERSION : PeerConnection.JSON_VERSION;
+        PeerConnection connection = new PeerConnection(ip, port, version, this.binaryCodec);
+        connection.metrics = this.metrics;
+        connection.tls = this.tls;
+        return connection;
+    }
+
+    /**
+     * Sends a PUT straight to the receiver if its address is cached, or known from the membership view
+     * @param putJson the message to send
+     * @param aliasReceiver the name of the destination client
+     * @return true if the message went out directly, false if it has to go around the ring
+     */
+    public boolean sendDirect(JsonObject putJson, String aliasReceiver) {
+        if (this.directory == null) return false;
+
+        AddressCache.Address address = this.directory.get(aliasReceiver);
+        if (address == null && this.roster != null) {
+            // The view has the address already, so even the first PUT doesn't have to go around the ring
+            Roster.Member member = this.roster.get(aliasReceiver);
+            if (member == null) return false;
+            rememberAddress(aliasReceiver, member.ip, member.port);
+            address = this.directory.get(aliasReceiver);
+        }
+        if (address == null) return false;
+        if (deliver(withParameter(putJson, "direct", JsonValue.TRUE), null, address.ip, address.port)) return true;
+
+        // The client isn't there anymore, so forget it and fall back to the ring
+        forgetAddress(aliasReceiver);
+        return false;
+    }
+
+    /**
+     * Caches the address of another client
+     * @param alias the name of the client
+     * @param ip the IP address of the client
+     * @param port the port of the client
+     */
+    public void rememberAddress(String alias, String ip, int port) {
+        if (this.directory == null || alias.equals(this.alias)) return;
+        if (this.directory.put(alias, ip, port)) {
+            releaseStaleConnections();
+        }
+    }
+
+    /**
+     * Removes the address of another client from the cache
+     * @param alias the name of the client
+     */
+    public void forgetAddress(String alias) {
+        if (this.directory == null) return;
+        this.directory.remove(alias);
+        releaseStaleConnections();
+    }
+
+    /**
+     * Checks whether an address is the current successor or predecessor
+     * @param ip the IP address to check
+     * @param port the port to check
+     * @return true if ip:port is a neighbour of this client
+     */
+    public boolean isNeighbour(String ip, int port) {
+        return this.neighbours.get().contains(ip, port);
+    }
+
+    /**
+     * Checks whether the connection to an address should be kept open
+     * @param ip the IP address to check
+     * @param port the port to check
+     * @return true if ip:port is a neighbour or a cached address of another client
+     */
+    public boolean isPooled(String ip, int port) {
+        return isNeighbour(ip, port) || (this.directory != null && this.directory.containsAddress(ip, port));
+    }
+
+    /**
+     * Closes the pooled connections that no longer go to the successor, the predecessor or a cached address.
+     * Called after every neighbour update so the next send re-establishes the connection to the new target.
+     */
+    public void releaseStaleConnections() {
+        Iterator<PeerConnection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            PeerConnection connection = iterator.next();
+            if (!isPooled(connection.ip, connection.port)) {
+                iterator.remove();
+                connection.retire();
+            }
+        }
+    }
+
+    /**
+     * Closes every pooled connection. Used when the client leaves the chat.
+     * Sends still queued on virtual threads get a moment to go out first.
+     */
+    public void closeConnections() {
+        if (this.dispatcher != null) {
+            this.controlDispatcher.drain(DRAIN_TIMEOUT_MS);
+            this.dispatcher.drain(DRAIN_TIMEOUT_MS);
+        }
+        if (this.asyncDispatcher != null) {
+            this.asyncDispatcher.drain(DRAIN_TIMEOUT_MS);
+        }
+
+        Iterator<PeerConnection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().retire();
+            iterator.remove();
         }
     }
 
@@ -245,27 +1255,51 @@ public class Chat {
     public Chat(String alias, int myPort) {
         this.alias = alias;
         this.myPort = myPort;
-        this.dataSemaphore = new Semaphore(1);
+        this.connections = new ConcurrentHashMap<>();
 
-        this.ipSuccessor = "localhost";
-        this.portSuccessor = myPort;
-        this.ipPredecessor = "localhost";
-        this.portPredecessor = myPort;
+        this.id = FingerTable.hash(alias);
+        this.host = DEFAULT_HOST;
+        this.neighbours = new AtomicReference<>(Neighbours.alone(this.host, myPort, this.id));
+        this.membership = new Membership();
+        this.attachments = new Attachments(new File("downloads", alias));
     }
 
     /**
     * Starts the program
     * @param args inputs to the chat program. 1st arg should be a name and 2nd arg should be a port above 4000.
+    *             Any following args are options:
+    *             --persistent keeps framed connections open to the successor and predecessor
+    *             --binary also offers the binary codec on those connections
+    *             --batch coalesces PUTs on those connections into batch frames
+    *             --virtual-threads handles each message and each send on its own virtual thread
+    *             --concurrency n caps how many of those run at once
+    *             --fingers orders the ring by alias hash and routes PUTs with a finger table
+    *             --bidirectional orders the ring by alias hash and sends PUTs whichever way around it is shorter
+    *             --directory caches the addresses of receivers and sends repeated PUTs to them directly
+    *             --metrics port collects traffic metrics, published over JMX and at http://localhost:port/metrics
+    *             --successors r sends heartbeats to detect failed neighbours and skips over them using the next r successors
+    *             --store dir keeps PUTs for receivers that aren't in the ring in a log under dir until they join
+    *             --daemon port runs without the menu, taking commands on a control socket at localhost:port instead
+    *             --downloads dir is where files sent to this client are saved, downloads/alias by default
+    *             --compress deflates the chunks of files this client sends where that makes them smaller
+    *             --reliable numbers PUTs, sends them again until they are acknowledged and shows those from each sender in order, once
+    *             --gossip keeps a view of who is in the chat room, spread with the heartbeats to the neighbours
+    *             --tls dir encrypts all traffic between clients, which have to show a certificate from the authority in dir.
+    *                       Implies --persistent, so a handshake is paid once per connection, see TlsContext and TestAuthority.
+    *             --host address is the address other clients reach this one at, and the only one it listens on.
+    *                            Without it the client listens everywhere and goes by localhost until it joins a ring on another machine,
+    *                            or a client on another machine connects to it.
     */
     public static void main(String[] args) {
         if (args.length < 2) {
-            throw new IllegalArgumentException("Parameter: <alias> <myPort>");
+            throw new IllegalArgumentException("Parameter: <alias> <myPort> [--persistent] [--binary] [--batch] [--virtual-threads [--concurrency n]] [--fingers] [--bidirectional] [--directory] [--metrics port] [--successors r] [--store dir] [--daemon port] [--downloads dir] [--compress] [--reliable] [--gossip] [--tls dir] [--host address]");
         }
         Chat chat = new Chat(args[0], Integer.parseInt(args[1]));
+        configure(chat, args, 2);
 
         // Initialization of the peer
         Thread server = new Thread(new Server(chat));
-        Thread client = new Thread(new Client(chat));
+        Thread client = new Thread(chat.controlPort > 0 ? new ControlSocket(chat, chat.controlPort) : new Client(chat));
 
         server.start();
         client.start();
@@ -278,4 +1312,107 @@ public class Chat {
             e.printStackTrace();
         }
     }
+
+    /**
+    * Applies the command line options described in main to a client
+    * @param chat the client to configure
+    * @param args the command line arguments
+    * @param first the index of the first option in args
+    */
+    public static void configure(Chat chat, String[] args, int first) {
+        boolean fingers = false;
+        boolean virtualThreads = false;
+        boolean gossip = false;
+        int concurrency = Dispatcher.DEFAULT_CONCURRENCY;
+        for (int i = first; i < args.length; i++) {
+            switch(args[i]) {
+                case "--persistent":
+                    chat.persistentConnections = true;
+                    break;
+                case "--binary":
+                    chat.persistentConnections = true;
+                    chat.binaryCodec = true;
+                    break;
+                case "--batch":
+                    chat.persistentConnections = true;
+                    chat.batching = true;
+                    break;
+                case "--virtual-threads":
+                    virtualThreads = true;
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "--fingers":
+                    fingers = true;
+                    break;
+                case "--bidirectional":
+                    chat.bidirectional = true;
+                    break;
+                case "--directory":
+                    chat.directory = new AddressCache(DIRECTORY_CAPACITY, DIRECTORY_TTL_MS);
+                    break;
+                case "--metrics":
+                    chat.metrics = new Metrics(chat.getAlias());
+                    chat.metrics.register();
+                    try {
+                        chat.metrics.serve(Integer.parseInt(args[++i]));
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                    break;
+                case "--successors":
+                    chat.successorListSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--daemon":
+                    chat.controlPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--downloads":
+                    chat.attachments = new Attachments(new File(args[++i]));
+                    break;
+                case "--compress":
+                    chat.compressChunks = true;
+                    break;
+                case "--reliable":
+                    chat.outbox = new Outbox();
+                    chat.inbox = new Inbox();
+                    break;
+                case "--gossip":
+                    gossip = true;
+                    break;
+                case "--tls":
+                    chat.persistentConnections = true;
+                    try {
+                        chat.tls = new TlsContext(new File(args[++i]), chat.getAlias());
+                    } catch(IOException e) {
+                        // Going on in plaintext would give away what --tls is meant to protect
+                        throw new IllegalArgumentException("Can't use TLS: " + e.getMessage(), e);
+                    }
+                    break;
+                case "--host":
+                    chat.setHost(args[++i]);
+                    chat.bindToHost = true;
+                    break;
+                case "--store":
+                    try {
+                        chat.store = new MessageLog(new File(args[++i], chat.getAlias()));
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                    break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        // The finger table starts out pointing at the client itself, so it needs the final host
+        if (fingers) {
+            chat.fingers = new FingerTable(chat.getId(), chat.getHost(), chat.getPort());
+        }
+        if (virtualThreads) {
+            chat.dispatcher = new Dispatcher(concurrency);
+            chat.controlDispatcher = chat.dispatcher.lane(Dispatcher.CONTROL_CONCURRENCY);
+        }
+        if (gossip) {
+            chat.roster = new Roster(chat.getAlias(), chat.getHost(), chat.getPort());
+        }
+    }
 }
\ No newline at end of file
@@ -1,12 +1,25 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 
 /**
  * This class represents the client who sends messages to the server via sockets.
+ * The menu reads the user's input and calls the methods that take their arguments directly,
+ * which also serve the control socket of a daemon and the load generator.
  */
 public class Client implements Runnable {
     Chat chat;
 
+    // Reads the user's input, shared by all prompts so no buffered input is lost between them
+    Scanner scanner;
+
     /**
      * Constructor for the Client class
      * @param chat the Chat object
@@ -17,15 +30,11 @@ public class Client implements Runnable {
 
     /**
      * Performs the necessary actions for a client-side JOIN message in the Flooding protocol.
+     * The ACCEPT sets both neighbours, so this only waits for it.
      */
     public void join() {
-        int port = getIntegerInput("What port do you want to connect to " + this.chat.getAlias() + "?\n");
-
-        JsonObject joinJson = this.chat.createMessage_JOIN(this.chat.getAlias(), this.chat.getPort());
-        this.chat.sendJson(joinJson, "localhost", port);
-
-        // Make successor of this local user equal to the port the user wished to connect to
-        this.chat.updatePortSuccessor(port);
+        String address = getTextInput("What port do you want to connect to " + this.chat.getAlias() + "? (host:port on another machine)\n");
+        this.chat.joinRing(address);
     }
 
     /**
@@ -38,25 +47,201 @@ public class Client implements Runnable {
             return;
         }
         String message = getTextInput("What do you want to say to " + recipient + "? ");
+        put(recipient, message);
+    }
+
+    /**
+     * Sends a message to one client
+     * @param recipient the alias of the recipient
+     * @param message the message
+     * @return a future that completes once the message left this client, or exceptionally if it couldn't be sent
+     */
+    public CompletableFuture<Void> put(String recipient, String message) {
+        if (recipient.equals(this.chat.getAlias())) {
+            return failure("You can't message yourself!");
+        }
+
+        // The receiver acknowledges to the address in the message, both to the directory and to the outbox
+        JsonObject putJson = this.chat.directory == null && this.chat.outbox == null
+            ? this.chat.createMessage_PUT(this.chat.getAlias(), recipient, message)
+            : this.chat.createMessage_PUT(this.chat.getAlias(), recipient, message, this.chat.getHost(), this.chat.getPort());
+
+        if (this.chat.metrics != null) {
+            putJson = Metrics.stamp(putJson);
+        }
+        if (this.chat.outbox != null) {
+            putJson = this.chat.outbox.number(putJson, System.currentTimeMillis());
+        }
+
+        // Repeated messages go straight to the recipient once its address is known
+        if (this.chat.sendDirect(putJson, recipient)) return CompletableFuture.completedFuture(null);
+
+        // When routing by alias hash and that lands on us, the recipient isn't in the ring
+        FingerTable.Finger hop = this.chat.nextHop(recipient);
+        if (hop == null) {
+            if (this.chat.outbox != null) this.chat.outbox.forget(putJson);
+            System.out.printf("%s is not available in this chat room%n", recipient);
+            return failure(recipient + " is not available in this chat room");
+        }
+        return send(putJson, recipient, hop);
+    }
+
+    /**
+     * Creates the future of a message that wasn't sent
+     * @param reason why the message wasn't sent
+     * @return a future that failed with an IllegalArgumentException
+     */
+    static CompletableFuture<Void> failure(String reason) {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalArgumentException(reason));
+        return failed;
+    }
+
+    /**
+     * Sends a PUT without waiting for it, and tells the user if it couldn't be sent.
+     * Blocks only while the next hop is too far behind to take more messages.
+     * @param putJson the message to send
+     * @param recipient the alias of the recipient
+     * @param hop the peer to send the message to
+     * @return the future of the send
+     */
+    CompletableFuture<Void> send(JsonObject putJson, String recipient, FingerTable.Finger hop) {
+        CompletableFuture<Void> sent = this.chat.sendAsync(putJson, hop.ip, hop.port);
+        sent.whenComplete((result, error) -> {
+            if (error != null) {
+                System.out.printf("Your message to %s couldn't be sent: %s%n", recipient, error.getMessage());
+            }
+        });
+        return sent;
+    }
 
-        JsonObject putJson = this.chat.createMessage_PUT(this.chat.getAlias(), recipient, message);
-        this.chat.sendJson(putJson, this.chat.getIpSuccessor(), this.chat.getPortSuccessor());
+    /**
+     * Performs the necessary actions for a client-side MULTICAST message.
+     * The message goes around the ring once however many clients it is for.
+     */
+    public void multicast() {
+        String recipients = getTextInput("Who do you want to message? Separate names with commas, or enter * for everyone. ");
+        String message = getTextInput("What do you want to say to them? ");
+
+        if (recipients.trim().equals("*")) {
+            broadcast(message);
+            return;
+        }
+        Set<String> aliases = new LinkedHashSet<>();
+        for (String recipient : recipients.split(",")) {
+            aliases.add(recipient.trim());
+        }
+        multicast(aliases, message);
+    }
+
+    /**
+     * Sends a message to a group of clients
+     * @param recipients the aliases of the recipients
+     * @param message the message
+     * @return false if there was nobody to send the message to
+     */
+    public boolean multicast(Collection<String> recipients, String message) {
+        Set<String> aliases = new LinkedHashSet<>();
+        for (String recipient : recipients) {
+            if (!recipient.isEmpty() && !recipient.equals(this.chat.getAlias())) {
+                aliases.add(recipient);
+            }
+        }
+        if (aliases.isEmpty()) {
+            System.out.printf("You can't message yourself!%n");
+            return false;
+        }
+
+        FingerTable.Finger successor = this.chat.getSuccessor();
+        this.chat.sendJson(this.chat.createMessage_MULTICAST(this.chat.getAlias(), aliases, message, this.chat.getHost(), this.chat.getPort()), successor.ip, successor.port);
+        return true;
+    }
+
+    /**
+     * Sends a message to every client in the ring
+     * @param message the message
+     */
+    public void broadcast(String message) {
+        FingerTable.Finger successor = this.chat.getSuccessor();
+        this.chat.sendJson(this.chat.createMessage_BROADCAST(this.chat.getAlias(), message, this.chat.getHost(), this.chat.getPort()), successor.ip, successor.port);
+    }
+
+    /**
+     * Asks for a file and sends it to one client
+     */
+    public void attach() {
+        String recipient = getTextInput("Who do you want to send a file? ");
+        File file = new File(getTextInput("Which file do you want to send to " + recipient + "? "));
+        try {
+            if (attach(recipient, file)) {
+                System.out.printf("Sent %s to %s%n", file.getName(), recipient);
+            }
+        } catch(IllegalArgumentException | IOException e) {
+            System.out.printf("Your file couldn't be sent: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a file to one client in chunks, waiting until every chunk has left this client
+     * @param recipient the alias of the recipient
+     * @param file the file to send
+     * @return false if the recipient turned out not to be in the ring
+     * @throws IOException if the file can't be read or a chunk can't be sent
+     */
+    public boolean attach(String recipient, File file) throws IOException {
+        if (recipient.equals(this.chat.getAlias())) {
+            throw new IllegalArgumentException("You can't send yourself a file!");
+        }
+        if (!file.isFile()) {
+            throw new IllegalArgumentException(file + " isn't a file");
+        }
+        return this.chat.attachments.send(this.chat, recipient, file, this.chat.compressChunks);
     }
 
     /**
      * Performs the necessary actions for a client-side LEAVE message in the Flooding protocol.
      */
     public void leave() {
-        String ipSuccessor = this.chat.getIpSuccessor(), ipPredecessor = this.chat.getIpPredecessor();
-        int portSuccessor = this.chat.getPortSuccessor(), portPredecessor = this.chat.getPortPredecessor();
+        // Both messages are built from one snapshot taken under the membership lock, so no JOIN can change the neighbours
+        // in between. Anything that reaches this client afterwards is passed on to them. The messages go out once
+        // the lock is released, like those of the changes that reached this client meanwhile.
+        Neighbours neighbours;
+        JsonArray members;
+        synchronized (this.chat.membership) {
+            neighbours = this.chat.getNeighbours();
+            this.chat.membership.beginLeave(neighbours);
+            members = this.chat.roster != null ? this.chat.roster.leave() : null;
+        }
+        if (!neighbours.isSuccessor(this.chat.getHost(), this.chat.getPort())) {
+            handOver(neighbours, members);
+        }
+        this.chat.membership.runDeferred();
 
+        this.chat.closeConnections();
+        if (this.chat.store != null) {
+            this.chat.store.close();
+        }
+    }
+
+    /**
+     * Tells the neighbours of this leaving client about each other, and that it left
+     * @param neighbours the neighbours being left
+     * @param members the entry of this client in the membership view, or null without gossip
+     */
+    void handOver(Neighbours neighbours, JsonArray members) {
         // Let this local user's predecessor know that the new successor is this local user's current successor
-        JsonObject successorJson = this.chat.createMessage_NEWSUCCESSOR(ipSuccessor, portSuccessor);
-        this.chat.sendJson(successorJson, ipPredecessor, portPredecessor);
+        JsonObject successorJson = !this.chat.routesByHash()
+            ? this.chat.createMessage_NEWSUCCESSOR(neighbours.ipSuccessor, neighbours.portSuccessor)
+            : this.chat.createMessage_NEWSUCCESSOR(neighbours.ipSuccessor, neighbours.portSuccessor, neighbours.idSuccessor);
+        if (members != null) successorJson = Chat.withParameter(successorJson, "members", members);
+        this.chat.sendJson(successorJson, neighbours.ipPredecessor, neighbours.portPredecessor);
 
         // Let this local user's successor know that the new predecessor is this local user's current predecessor
-        JsonObject leaveJson = this.chat.createMessage_LEAVE(ipPredecessor, portPredecessor);
-        this.chat.sendJson(leaveJson, ipSuccessor, portSuccessor);
+        JsonObject leaveJson = !this.chat.routesByHash()
+            ? this.chat.createMessage_LEAVE(neighbours.ipPredecessor, neighbours.portPredecessor)
+            : this.chat.createMessage_LEAVE(neighbours.ipPredecessor, neighbours.portPredecessor, neighbours.idPredecessor);
+        if (members != null) leaveJson = Chat.withParameter(leaveJson, "members", members);
+        this.chat.sendJson(leaveJson, neighbours.ipSuccessor, neighbours.portSuccessor);
     }
 
     /**
@@ -74,9 +259,15 @@ public class Client implements Runnable {
                     put();
                     break;
                 case 3:
-                    System.out.printf("Successor: %s%nPredecessor: %s%n", this.chat.getPortSuccessor(), this.chat.getPortPredecessor());
+                    multicast();
                     break;
                 case 4:
+                    attach();
+                    break;
+                case 5:
+                    System.out.print(info());
+                    break;
+                case 6:
                     leave();
                     alive = false;
                     break;
@@ -86,6 +277,38 @@ public class Client implements Runnable {
         System.out.printf("Goodbye %s!%n", this.chat.getAlias());
     }
 
+    /**
+     * Describes the client's place in the ring
+     * @return one line per fact, each ending with a line separator
+     */
+    public String info() {
+        StringBuilder info = new StringBuilder();
+        Neighbours neighbours = this.chat.getNeighbours();
+        info.append(String.format("Address: %s:%d%n", this.chat.getHost(), this.chat.getPort()));
+        info.append(String.format("Successor: %s:%d%nPredecessor: %s:%d%n", neighbours.ipSuccessor, neighbours.portSuccessor,
+            neighbours.ipPredecessor, neighbours.portPredecessor));
+        if (this.chat.routesByHash()) {
+            info.append(String.format("Node ID: %d%nSuccessor ID: %d%nPredecessor ID: %d%n", this.chat.getId(), neighbours.idSuccessor, neighbours.idPredecessor));
+        }
+        for (FingerTable.Finger successor : neighbours.successors) {
+            info.append(String.format("Then: %s:%d%n", successor.ip, successor.port));
+        }
+        if (this.chat.store != null) {
+            this.chat.store.getPending().forEach((alias, count) -> info.append(String.format("Kept for %s: %d%n", alias, count)));
+        }
+        if (this.chat.outbox != null) {
+            info.append(String.format("Waiting for acknowledgement: %d%n", this.chat.outbox.size()));
+        }
+        if (this.chat.roster != null) {
+            StringJoiner members = new StringJoiner(", ");
+            for (Roster.Member member : this.chat.roster.present()) {
+                members.add(String.format("%s (%s:%d)", member.alias, member.ip, member.port));
+            }
+            info.append(String.format("Members: %s%n", members));
+        }
+        return info.toString();
+    }
+
     /**
      * This method displays a list of menu options for the user to input.
      * It repeatedly asks for user input until it is valid.
@@ -93,11 +316,13 @@ public class Client implements Runnable {
      */
     public int getMenuOption() {
         // Create the options
-        String[] options = new String[4];
+        String[] options = new String[6];
         options[0] = "Join";
         options[1] = "Send a message";
-        options[2] = "Print info";
-        options[3] = "Leave";
+        options[2] = "Send a message to a group";
+        options[3] = "Send a file";
+        options[4] = "Print info";
+        options[5] = "Leave";
 
         // Print the options
         System.out.printf("--------------------%nChoose an option!%n--------------------%n");
@@ -118,8 +343,7 @@ public class Client implements Runnable {
      * @return the string the user enters
      */
     public String getTextInput() {
-        Scanner scanner = new Scanner(System.in);
-        return scanner.nextLine();
+        return getScanner().nextLine();
     }
 
     /**
@@ -133,12 +357,26 @@ public class Client implements Runnable {
     }
 
     /**
-     * Gets user integer input
-     * @return the integer the user enters
+     * Gets user integer input. The whole line is read, so the next prompt starts on a fresh line.
+     * @return the integer the user enters, or 0 if the line isn't a number
      */
     public int getIntegerInput() {
-        Scanner scanner = new Scanner(System.in);
-        return scanner.nextInt();
+        try {
+            return Integer.parseInt(getScanner().nextLine().trim());
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Scanner accessor, created on the first prompt so a client that is only used through its methods never reads the console
+     * @return the scanner reading the user's input
+     */
+    Scanner getScanner() {
+        if (this.scanner == null) {
+            this.scanner = new Scanner(System.in);
+        }
+        return this.scanner;
     }
 
     /**
@@ -0,0 +1,166 @@
+import javax.json.JsonObject;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class lets scripts drive a client that runs as a daemon, through a text protocol on a local port.
+ * Every command is one line and is answered with "ok" or "error <reason>", after any lines of output:
+ *   join [host:]port              joins the ring of the client at that address
+ *   send alias message            sends a message to one client
+ *   multicast alias,alias message sends a message to a group
+ *   broadcast message             sends a message to everyone in the ring
+ *   attach alias path             sends a file to one client, answering once every chunk has left
+ *   info                          describes the client's place in the ring
+ *   receive                       streams every message that arrives as "message sender text" lines,
+ *                                 and every file as "file sender path" lines, from now on
+ *   leave                         leaves the ring and stops the daemon
+ * Try it with e.g. nc localhost port.
+ */
+public class ControlSocket implements Runnable {
+    Chat chat;
+    Client client;
+    int port;
+
+    // Connections that asked to receive messages
+    List<PrintWriter> receivers;
+
+    /**
+     * Constructor for the ControlSocket class. It takes over the client's delivery and attachment listeners.
+     * @param chat the client to drive
+     * @param port the local port to listen on
+     */
+    public ControlSocket(Chat chat, int port) {
+        this.chat = chat;
+        this.client = new Client(chat);
+        this.port = port;
+        this.receivers = new CopyOnWriteArrayList<>();
+        chat.deliveryListener = this::delivered;
+        chat.attachmentListener = (sender, file) -> stream("file " + sender + " " + file.getAbsolutePath());
+    }
+
+    /**
+     * Passes a message that arrived on to every connection that asked to receive messages
+     * @param putJson the message
+     */
+    void delivered(JsonObject putJson) {
+        JsonObject parameters = putJson.getJsonObject("parameters");
+        stream("message " + parameters.getString("aliasSender") + " " + parameters.getString("message").replace('\n', ' '));
+    }
+
+    /**
+     * Writes a line to every connection that asked to receive messages, dropping those that are closed
+     * @param line the line
+     */
+    void stream(String line) {
+        for (PrintWriter receiver : this.receivers) {
+            receiver.println(line);
+            if (receiver.checkError()) this.receivers.remove(receiver);
+        }
+    }
+
+    /**
+     * Runs the commands of one connection until it closes
+     * @param socket the connection
+     */
+    void serve(Socket socket) {
+        try (Socket connection = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(connection.getOutputStream(), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                String[] words = line.trim().split(" ", 2);
+                try {
+                    if (!execute(words[0], words.length > 1 ? words[1] : "", out)) return;
+                } catch(IllegalArgumentException | CompletionException e) {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    out.println("error " + cause.getMessage());
+                }
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs one command
+     * @param command the first word of the line
+     * @param arguments the rest of the line
+     * @param out where the answer goes
+     * @return false if the daemon stops
+     */
+    boolean execute(String command, String arguments, PrintWriter out) {
+        String[] words = arguments.split(" ", 2);
+        switch(command) {
+            case "join":
+                if (!this.chat.joinRing(words[0])) {
+                    throw new IllegalArgumentException("couldn't join " + words[0]);
+                }
+                break;
+            case "send":
+                if (words.length < 2) throw new IllegalArgumentException("usage: send alias message");
+                this.client.put(words[0], words[1]).join();
+                break;
+            case "multicast":
+                if (words.length < 2) throw new IllegalArgumentException("usage: multicast alias,alias message");
+                if (!this.client.multicast(Arrays.asList(words[0].split(",")), words[1])) {
+                    throw new IllegalArgumentException("nobody to send to");
+                }
+                break;
+            case "broadcast":
+                this.client.broadcast(arguments);
+                break;
+            case "attach":
+                if (words.length < 2) throw new IllegalArgumentException("usage: attach alias path");
+                try {
+                    if (!this.client.attach(words[0], new File(words[1]))) {
+                        throw new IllegalArgumentException(words[0] + " is not available in this chat room");
+                    }
+                } catch(IOException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+                break;
+            case "info":
+                out.print(this.client.info());
+                break;
+            case "receive":
+                this.receivers.add(out);
+                break;
+            case "leave":
+                this.client.leave();
+                out.println("ok");
+                System.exit(0);
+                return false;
+            default: throw new IllegalArgumentException("unknown command " + command);
+        }
+        out.println("ok");
+        return true;
+    }
+
+    /**
+     * Main method of execution for the thread. Accepts connections from this host only.
+     */
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket(this.port, 50, InetAddress.getLoopbackAddress())) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> serve(socket), "control-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
\ No newline at end of file
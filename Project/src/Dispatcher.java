@@ -0,0 +1,230 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs message handling and outbound sends off the selector and client threads.
+ * Every task gets its own virtual thread when the JVM has them, and a semaphore caps how many tasks run at once.
+ * Older JVMs run the tasks on a pool of as many platform threads as there are permits instead, so tasks waiting
+ * for a permit don't each hold a thread. The tasks for one destination run in submission order.
+ * A lane has permits of its own, and threads of its own on older JVMs, which keeps control messages from waiting behind PUTs.
+ */
+public class Dispatcher implements Executor {
+    // Default cap on the number of tasks running at the same time
+    static final int DEFAULT_CONCURRENCY = 256;
+
+    // Cap on the number of control tasks running at the same time, on the lane they have to themselves
+    static final int CONTROL_CONCURRENCY = 32;
+
+    // Number of offered tasks that may wait for one destination
+    static final int QUEUE_CAPACITY = 1024;
+
+    // Idle pooled threads are let go after this long
+    static final long KEEP_ALIVE_S = 60;
+
+    ExecutorService executor;
+    Semaphore permits;
+
+    // Whether the executor starts a virtual thread per task, otherwise it is a pool bounded to the permits
+    boolean virtual;
+
+    // One serial queue per destination that currently has sends pending, keyed by "ip:port"
+    Map<String, SerialExecutor> destinations;
+
+    // Free places in the queue of offered tasks per destination
+    Map<String, Semaphore> queueSpace;
+
+    /**
+     * Constructor for the Dispatcher class
+     * @param concurrency the maximum number of tasks running at the same time
+     */
+    public Dispatcher(int concurrency) {
+        this(newVirtualThreadPerTaskExecutor(), concurrency);
+    }
+
+    /**
+     * Constructor for the Dispatcher class, running the tasks on the given executor
+     * @param executor the executor that starts a virtual thread for every task, or null to run them on a pool of their own
+     * @param concurrency the maximum number of tasks running at the same time
+     */
+    Dispatcher(ExecutorService executor, int concurrency) {
+        this.virtual = executor != null;
+        this.executor = executor != null ? executor : newBoundedPool(concurrency);
+        this.permits = new Semaphore(concurrency);
+        this.destinations = new ConcurrentHashMap<>();
+        this.queueSpace = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a dispatcher that starts its tasks the same way as this one but has permits and destination queues
+     * of its own, so its tasks never wait behind the ones of this dispatcher. Virtual threads are shared with this one.
+     * @param concurrency the maximum number of tasks of the new dispatcher running at the same time
+     * @return the dispatcher
+     */
+    public Dispatcher lane(int concurrency) {
+        return new Dispatcher(this.virtual ? this.executor : null, concurrency);
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task
+     * @return the executor, or null if the JVM has no virtual threads, as they need Java 21
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This class is the queue of a pool that starts a thread for a task only when none is idle, up to the maximum.
+     * A plain ThreadPoolExecutor starts a thread for every task until it has its core size, idle threads or not,
+     * which leaves hundreds of threads around after a burst.
+     */
+    static class GrowingQueue extends LinkedBlockingQueue<Runnable> {
+        ThreadPoolExecutor pool;
+
+        /**
+         * Queues a task if a thread is idle to take it or no more threads may be started.
+         * Turning the task down makes the pool start a thread for it.
+         * @param task the task
+         * @return true if the task was queued
+         */
+        @Override
+        public boolean offer(Runnable task) {
+            if (this.pool.getPoolSize() < this.pool.getMaximumPoolSize() && this.pool.getActiveCount() + size() >= this.pool.getPoolSize()) {
+                return false;
+            }
+            return super.offer(task);
+        }
+
+        /**
+         * Queues a task whatever the pool looks like
+         * @param task the task
+         */
+        void force(Runnable task) {
+            super.offer(task);
+        }
+    }
+
+    /**
+     * Creates a pool of platform threads that runs as many tasks at once as there are permits and queues the rest
+     * @param concurrency the maximum number of threads
+     * @return the pool
+     */
+    static ExecutorService newBoundedPool(int concurrency) {
+        GrowingQueue queue = new GrowingQueue();
+        // The pool was full after all when it turns a task down, so the task waits for a thread
+        queue.pool = new ThreadPoolExecutor(0, concurrency, KEEP_ALIVE_S, TimeUnit.SECONDS, queue, (task, pool) -> queue.force(task));
+        return queue.pool;
+    }
+
+    /**
+     * Runs a task on a thread of its own once a permit is free, or on the next free thread of the pool.
+     * A virtual thread takes the permit itself, so submitting never blocks the selector or the client.
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        if (!this.virtual) {
+            // The pool has a thread per permit, so it caps the running tasks on its own
+            this.executor.execute(() -> {
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    e.printStackTrace();
+                }
+            });
+            return;
+        }
+        this.executor.execute(() -> {
+            try {
+                this.permits.acquire();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                this.permits.release();
+            }
+        });
+    }
+
+    /**
+     * Runs a task after every task previously submitted for the same destination
+     * @param destination the key of the destination, e.g. "ip:port"
+     * @param task the task to run
+     */
+    public void execute(String destination, Runnable task) {
+        this.destinations.compute(destination, (key, serial) -> {
+            SerialExecutor queue = serial == null ? new SerialExecutor(this) : serial;
+            queue.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    // Forget the queue once it runs dry so one-off destinations don't pile up
+                    this.destinations.computeIfPresent(key, (k, current) -> current == queue && !queue.hasQueued() ? null : current);
+                }
+            });
+            return queue;
+        });
+    }
+
+    /**
+     * Runs a task after every task previously submitted for the same destination, like execute, but only while
+     * fewer than QUEUE_CAPACITY offered tasks wait for it. Otherwise the caller waits for one of them to finish,
+     * so a slow destination holds back whoever sends to it instead of piling up tasks.
+     * @param destination the key of the destination, e.g. "ip:port"
+     * @param task the task to run
+     * @param timeoutMs how long to wait for room at most
+     * @return true if the task was queued, false if there was no room in time
+     * @throws InterruptedException if the caller is interrupted while waiting
+     */
+    public boolean offer(String destination, Runnable task, long timeoutMs) throws InterruptedException {
+        Semaphore space = this.queueSpace.computeIfAbsent(destination, key -> new Semaphore(QUEUE_CAPACITY));
+        if (!space.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) return false;
+
+        execute(destination, () -> {
+            try {
+                task.run();
+            } finally {
+                space.release();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits until the tasks submitted so far for every destination have run
+     * @param timeoutMs how long to wait at most
+     * @return true if everything was sent in time
+     */
+    public boolean drain(long timeoutMs) {
+        List<String> pending = new ArrayList<>(this.destinations.keySet());
+        CountDownLatch latch = new CountDownLatch(pending.size());
+        for (String destination : pending) {
+            execute(destination, latch::countDown);
+        }
+        try {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
\ No newline at end of file
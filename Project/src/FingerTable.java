@@ -0,0 +1,172 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class represents the Chord-style finger table of a client.
+ * Clients are placed on a 32-bit identifier ring by the hash of their alias, and finger i points to the first
+ * client at or after id + 2^i, so a message reaches any alias in a logarithmic number of hops.
+ */
+public class FingerTable {
+    // Number of bits in a node ID, and so the number of fingers
+    static final int BITS = 32;
+
+    // Mask that keeps arithmetic on the identifier ring
+    static final long MASK = (1L << BITS) - 1;
+
+    /**
+     * This class represents one entry of the table
+     */
+    public static class Finger {
+        long id;
+        String ip;
+        int port;
+
+        /**
+         * Constructor for the Finger class
+         * @param id the node ID of the client
+         * @param ip the IP address of the client
+         * @param port the port of the client
+         */
+        public Finger(long id, String ip, int port) {
+            this.id = id;
+            this.ip = ip;
+            this.port = port;
+        }
+    }
+
+    long id;
+    Finger[] fingers;
+
+    /**
+     * Constructor for the FingerTable class. Every finger starts out pointing at the client itself.
+     * @param id the node ID of the client
+     * @param ip the IP address of the client
+     * @param port the port of the client
+     */
+    public FingerTable(long id, String ip, int port) {
+        this.id = id;
+        this.fingers = new Finger[BITS];
+        fill(new Finger(id, ip, port));
+    }
+
+    /**
+     * Hashes an alias onto the identifier ring
+     * @param alias the name of a client
+     * @return the first 32 bits of the SHA-1 of the alias
+     */
+    public static long hash(String alias) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(alias.getBytes(StandardCharsets.UTF_8));
+            return ((digest[0] & 0xFFL) << 24) | ((digest[1] & 0xFFL) << 16) | ((digest[2] & 0xFFL) << 8) | (digest[3] & 0xFFL);
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks whether an ID lies in the ring interval (from, to]. When from equals to the interval is the whole ring.
+     * @param x the ID to check
+     * @param from the exclusive start of the interval
+     * @param to the inclusive end of the interval
+     * @return true if x is in the interval
+     */
+    public static boolean between(long x, long from, long to) {
+        long distance = (to - from) & MASK;
+        long offset = (x - from) & MASK;
+        return distance == 0 || (offset != 0 && offset <= distance);
+    }
+
+    /**
+     * Measures how far clockwise one ID is from another
+     * @param from the ID to start at
+     * @param to the ID to end at
+     * @return the number of IDs to go clockwise from from to reach to
+     */
+    public static long distance(long from, long to) {
+        return (to - from) & MASK;
+    }
+
+    /**
+     * Start accessor
+     * @param i the index of the finger
+     * @return the first ID finger i is responsible for, id + 2^i
+     */
+    public long start(int i) {
+        return (this.id + (1L << i)) & MASK;
+    }
+
+    /**
+     * Finger accessor
+     * @param i the index of the finger
+     * @return the client finger i points at
+     */
+    public synchronized Finger get(int i) {
+        return this.fingers[i];
+    }
+
+    /**
+     * Finger mutator
+     * @param i the index of the finger
+     * @param finger the client finger i should point at
+     */
+    public synchronized void update(int i, Finger finger) {
+        this.fingers[i] = finger;
+    }
+
+    /**
+     * Points every finger at the same client, e.g. the successor right after joining
+     * @param finger the client to point at
+     */
+    public synchronized void fill(Finger finger) {
+        for (int i = 0; i < BITS; i++) {
+            this.fingers[i] = finger;
+        }
+    }
+
+    /**
+     * Points fingers at a newly learned client wherever it is closer to their start than the current entry
+     * @param finger the client that was learned about
+     */
+    public synchronized void learn(Finger finger) {
+        for (int i = 0; i < BITS; i++) {
+            long start = start(i);
+            Finger current = this.fingers[i];
+            if (current.id == start) continue;
+
+            // The new client is a better finger if it lies in [start, current)
+            if (finger.id == start || between(finger.id, start, current.id) && finger.id != current.id) {
+                this.fingers[i] = finger;
+            }
+        }
+    }
+
+    /**
+     * Replaces the fingers that point at a client which left the ring
+     * @param ip the IP address of the client that left
+     * @param port the port of the client that left
+     * @param replacement the client that took over its part of the ring
+     */
+    public synchronized void forget(String ip, int port, Finger replacement) {
+        for (int i = 0; i < BITS; i++) {
+            if (this.fingers[i].ip.equals(ip) && this.fingers[i].port == port) {
+                this.fingers[i] = replacement;
+            }
+        }
+    }
+
+    /**
+     * Finds the finger that gets closest to a key without passing it
+     * @param key the ID being routed to
+     * @return the finger in (id, key] furthest along the ring, or null if no finger precedes the key
+     */
+    public synchronized Finger closestPreceding(long key) {
+        for (int i = BITS - 1; i >= 0; i--) {
+            Finger finger = this.fingers[i];
+            if (finger.id != this.id && between(finger.id, this.id, key)) {
+                return finger;
+            }
+        }
+        return null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+import javax.json.JsonObject;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class maps message types to the handlers of the server. A type is found by the compact code the binary codec
+ * puts on the wire, so looking up the handler of a binary message is an array access, and by name for JSON messages.
+ * Each handler also says where it runs, so control messages never wait behind the PUTs being relayed:
+ * INLINE handlers run on the selector thread and must only do bookkeeping, CONTROL handlers run in order per connection
+ * on a pool of their own, and BULK handlers run in order per connection on the worker pool.
+ */
+public class HandlerRegistry {
+    /*----- Modes -----*/
+
+    enum Mode { INLINE, CONTROL, BULK }
+
+    /**
+     * This interface handles a message as JSON
+     */
+    interface JsonHandler {
+        void handle(JsonObject jsonMessage, InetAddress from);
+    }
+
+    /**
+     * This interface handles a message straight from its binary form, without decoding it first
+     */
+    interface BinaryHandler {
+        void handle(byte[] binaryMessage, InetAddress from);
+    }
+
+    /**
+     * This class represents the handler of one message type
+     */
+    static class Handler {
+        String type;
+        Mode mode;
+        JsonHandler json;
+
+        // Fast path for binary messages, null when they are decoded and handled as JSON
+        BinaryHandler binary;
+
+        /**
+         * Constructor for the Handler class
+         * @param type the name of the message type
+         * @param mode where the handler runs
+         * @param json the handler of the message as JSON
+         * @param binary the handler of the message in binary form, or null
+         */
+        Handler(String type, Mode mode, JsonHandler json, BinaryHandler binary) {
+            this.type = type;
+            this.mode = mode;
+            this.json = json;
+            this.binary = binary;
+        }
+    }
+
+    // Start of every JSON message the clients write, which puts the type first
+    static final byte[] JSON_TYPE_PREFIX = "{\"type\":\"".getBytes(StandardCharsets.UTF_8);
+
+    // Handlers of the types that have a code, indexed by it
+    Handler[] byCode;
+
+    // Handlers of every type, keyed by name
+    Map<String, Handler> byName;
+
+    /**
+     * Constructor for the HandlerRegistry class
+     */
+    public HandlerRegistry() {
+        this.byCode = new Handler[256];
+        this.byName = new HashMap<>();
+    }
+
+    /**
+     * Registers the handler of a message type, replacing any earlier one. Handlers are registered before the server starts.
+     * @param type the name of the message type
+     * @param mode where the handler runs
+     * @param json the handler of the message
+     */
+    public void register(String type, Mode mode, JsonHandler json) {
+        register(type, mode, json, null);
+    }
+
+    /**
+     * Registers the handler of a message type with a fast path for binary messages, replacing any earlier one
+     * @param type the name of the message type
+     * @param mode where the handler runs
+     * @param json the handler of the message as JSON
+     * @param binary the handler of the message in binary form
+     */
+    public void register(String type, Mode mode, JsonHandler json, BinaryHandler binary) {
+        Handler handler = new Handler(type, mode, json, binary);
+        int code = BinaryCodec.typeCode(type);
+        if (code != 0) this.byCode[code] = handler;
+        this.byName.put(type, handler);
+    }
+
+    /**
+     * Handler accessor by code
+     * @param code the type code of a binary message, 0 if the type is given by name
+     * @return the handler, or null if the code has none
+     */
+    public Handler get(int code) {
+        return this.byCode[code];
+    }
+
+    /**
+     * Handler accessor by name
+     * @param type the name of the message type
+     * @return the handler, or null if the type is unknown
+     */
+    public Handler get(String type) {
+        return this.byName.get(type);
+    }
+
+    /**
+     * Mode accessor by name
+     * @param type the name of the message type
+     * @return where the message is handled, BULK if the type is unknown
+     */
+    public Mode mode(String type) {
+        Handler handler = get(type);
+        return handler == null ? Mode.BULK : handler.mode;
+    }
+
+    /**
+     * Mode accessor for a frame that wasn't parsed yet. Binary frames carry the type code in their header,
+     * and the type of JSON text is read from its start.
+     * @param payload the bytes of the message
+     * @return where the message is handled, BULK if its type can't be read without parsing it or is unknown
+     */
+    public Mode mode(byte[] payload) {
+        if (BinaryCodec.isBinary(payload)) {
+            Handler handler = get(BinaryCodec.getTypeCode(payload));
+            return handler != null ? handler.mode : mode(BinaryCodec.getType(payload));
+        }
+        String type = peekType(payload);
+        return type == null ? Mode.BULK : mode(type);
+    }
+
+    /**
+     * Reads the type of a JSON message from the start of its text
+     * @param payload the UTF-8 bytes of the message
+     * @return the name of the type, or null if the message doesn't start with it
+     */
+    static String peekType(byte[] payload) {
+        if (payload.length <= JSON_TYPE_PREFIX.length) return null;
+        for (int i = 0; i < JSON_TYPE_PREFIX.length; i++) {
+            if (payload[i] != JSON_TYPE_PREFIX[i]) return null;
+        }
+        for (int end = JSON_TYPE_PREFIX.length; end < payload.length; end++) {
+            if (payload[end] == '"') return new String(payload, JSON_TYPE_PREFIX.length, end - JSON_TYPE_PREFIX.length, StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts recorded values in buckets that grow with the value, like an HDR histogram.
+ * Every power of two is split into the same number of buckets, so percentiles are off by at most a few percent
+ * whether the values are microseconds or seconds, and recording is a couple of atomic increments.
+ */
+public class Histogram {
+    // Values below 2^SUB_BUCKET_BITS get a bucket each, every power of two above is split into half as many buckets
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int HALF = SUB_BUCKETS / 2;
+
+    AtomicLongArray counts;
+    AtomicLong count;
+    AtomicLong max;
+
+    /**
+     * Constructor for the Histogram class
+     */
+    public Histogram() {
+        this.counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * HALF);
+        this.count = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value the value to record
+     */
+    public void record(long value) {
+        long recorded = Math.max(0, value);
+        this.counts.incrementAndGet(index(recorded));
+        this.count.incrementAndGet();
+        this.max.accumulateAndGet(recorded, Math::max);
+    }
+
+    /**
+     * Finds the bucket of a value
+     * @param value a value of at least 0
+     * @return the index of the bucket
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+
+        // Shift the value so it keeps SUB_BUCKET_BITS significant bits, which lands it in [HALF, SUB_BUCKETS)
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * Finds the largest value that lands in a bucket
+     * @param index the index of the bucket
+     * @return the upper end of the bucket
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+
+        int shift = index / HALF - 1;
+        long subBucket = index - shift * HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Count accessor
+     * @return how many values were recorded
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Max accessor
+     * @return the largest value recorded, or 0 if there is none
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Percentile accessor
+     * @param fraction the percentile as a fraction, e.g. 0.99
+     * @return a value that at least this fraction of the recorded values doesn't exceed, or 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            total += this.counts.get(i);
+        }
+        if (total == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+            if (seen >= target) return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,348 @@
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * This class represents the server side of one connection from another peer.
+ * It buffers the non-blocking reads of the channel until complete messages can be handed to the workers.
+ * On a TLS connection the bytes read are unwrapped first, and the handshake is answered as it comes in.
+ * The slow steps of the handshake, like checking the certificate of the peer, are left to another thread
+ * so the selector thread keeps serving the other connections meanwhile.
+ */
+public class InboundConnection {
+    /*----- States -----*/
+
+    // Waiting for the first 4 bytes to tell a framed connection from a legacy one
+    static final int DETECTING = 0;
+
+    // Framed connection waiting for the version byte of the handshake
+    static final int HANDSHAKING = 1;
+
+    // Framed connection carrying length-prefixed messages
+    static final int FRAMED = 2;
+
+    // Legacy connection carrying one ObjectOutputStream-wrapped message until the peer closes it
+    static final int LEGACY = 3;
+
+    // ObjectOutputStream stream header that starts every legacy connection
+    static final int LEGACY_MAGIC = 0xACED0005;
+
+    SocketChannel channel;
+    int state;
+
+    // Bytes read from the channel but not consumed yet, in write mode
+    ByteBuffer buffer;
+
+    // The whole legacy stream, parsed once the peer closes the connection
+    ByteArrayOutputStream legacyBytes;
+
+    // Handshake reply that couldn't be written in one go
+    ByteBuffer reply;
+
+    // Keeps the messages of this connection in order while they are handled by the worker pool
+    Executor executor;
+
+    // Keeps the control messages of this connection in order while they are handled by the control pool
+    Executor control;
+
+    // TLS engine of the connection, null when the connection is plaintext
+    SSLEngine engine;
+
+    // Bytes read from the channel but not unwrapped yet, and bytes wrapped but not written yet, both in write mode
+    ByteBuffer netIn;
+    ByteBuffer netOut;
+
+    // Set when the engine has tasks to run before the handshake can go on
+    boolean delegated;
+
+    // When the connection was accepted, in milliseconds
+    long acceptedAt;
+
+    /**
+     * Constructor for the InboundConnection class
+     * @param channel the accepted non-blocking channel
+     * @param executor the worker pool that handles the messages
+     * @param control the pool that handles the control messages
+     * @param engine the TLS engine of the connection, or null if it is plaintext
+     */
+    public InboundConnection(SocketChannel channel, Executor executor, Executor control, SSLEngine engine) {
+        this.channel = channel;
+        this.state = DETECTING;
+        this.buffer = ByteBuffer.allocate(8 * 1024);
+        this.executor = new SerialExecutor(executor);
+        this.control = new SerialExecutor(control);
+        this.engine = engine;
+        this.acceptedAt = System.currentTimeMillis();
+        if (engine != null) {
+            this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+            this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    /**
+     * Reads whatever the channel has available and extracts the frames that are complete
+     * @return the payloads of the complete frames, possibly none
+     * @throws EOFException if the peer closed the connection
+     * @throws IOException if the read fails or the peer breaks the protocol
+     */
+    public List<byte[]> read() throws IOException {
+        if (this.engine != null ? !unwrap() : this.channel.read(this.buffer) < 0) {
+            throw new EOFException();
+        }
+
+        List<byte[]> payloads = new ArrayList<>();
+        this.buffer.flip();
+        try {
+            while (consume(payloads)) {
+                // Keep consuming until the buffer runs out of complete messages
+            }
+        } finally {
+            this.buffer.compact();
+        }
+        return payloads;
+    }
+
+    /**
+     * Consumes one step of the protocol from the buffer
+     * @param payloads where to add a frame if one is complete
+     * @return true if something was consumed and there may be more to do
+     * @throws IOException if the peer breaks the protocol
+     */
+    boolean consume(List<byte[]> payloads) throws IOException {
+        switch(this.state) {
+            case DETECTING:
+                if (this.buffer.remaining() < 4) return false;
+                int magic = this.buffer.getInt();
+                if (magic == PeerConnection.MAGIC) {
+                    this.state = HANDSHAKING;
+                } else if (magic == LEGACY_MAGIC) {
+                    this.state = LEGACY;
+                    this.legacyBytes = new ByteArrayOutputStream();
+                    this.legacyBytes.write(this.buffer.array(), this.buffer.position() - 4, 4);
+                } else {
+                    throw new StreamCorruptedException(String.format("Unknown stream header %08x", magic));
+                }
+                return true;
+            case HANDSHAKING:
+                if (!this.buffer.hasRemaining()) return false;
+                int version = this.buffer.get() & 0xFF;
+
+                // Answer with the highest framing version both sides speak
+                this.reply = ByteBuffer.wrap(new byte[] { (byte) Math.min(version, PeerConnection.BATCH_VERSION) });
+                flush();
+                this.state = FRAMED;
+                return true;
+            case FRAMED:
+                if (this.buffer.remaining() < 4) return false;
+                int length = this.buffer.getInt(this.buffer.position());
+                if (length < 0 || length > PeerConnection.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (this.buffer.remaining() < 4 + length) {
+                    ensureCapacity(4 + length);
+                    return false;
+                }
+                byte[] payload = new byte[length];
+                this.buffer.getInt();
+                this.buffer.get(payload);
+                payloads.add(payload);
+                return true;
+            case LEGACY:
+                if (!this.buffer.hasRemaining()) return false;
+                // A legacy message is held until the peer closes, so it gets the same cap as a frame
+                if (this.legacyBytes.size() + this.buffer.remaining() > PeerConnection.MAX_FRAME_LENGTH) {
+                    throw new IOException("Legacy message longer than " + PeerConnection.MAX_FRAME_LENGTH + " bytes");
+                }
+                this.legacyBytes.write(this.buffer.array(), this.buffer.position(), this.buffer.remaining());
+                this.buffer.position(this.buffer.limit());
+                return false;
+            default:
+                throw new IllegalStateException("Unknown connection state " + this.state);
+        }
+    }
+
+    /**
+     * Reads what the channel has available and unwraps it into the buffer. Handshake messages are answered
+     * as they arrive, and the answers wait in netOut until flush writes them.
+     * @return false if the peer closed the connection
+     * @throws IOException if the read fails or the peer breaks TLS
+     */
+    boolean unwrap() throws IOException {
+        if (this.engine.isInboundDone() || this.channel.read(this.netIn) < 0) return false;
+
+        this.netIn.flip();
+        try {
+            while (true) {
+                switch(this.engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        // The rest waits in netIn until runDelegatedTasks is done
+                        this.delegated = true;
+                        return true;
+                    case NEED_WRAP:
+                        if (this.engine.isOutboundDone()) return true;
+                        wrap(ByteBuffer.allocate(0));
+                        continue;
+                    default:
+                }
+
+                SSLEngineResult result = this.engine.unwrap(this.netIn, this.buffer);
+                switch(result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        // The rest of the record is still on its way, and netIn holds the largest record there is
+                        return true;
+                    case BUFFER_OVERFLOW:
+                        this.buffer = grow(this.buffer, this.engine.getSession().getApplicationBufferSize());
+                        continue;
+                    case CLOSED:
+                        // What was unwrapped so far is still handled, the next read reports the end
+                        return true;
+                    default:
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                            && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) return true;
+                }
+            }
+        } finally {
+            this.netIn.compact();
+        }
+    }
+
+    /**
+     * Delegated tasks accessor
+     * @return true if the engine has tasks to run before the connection can be read again
+     */
+    public boolean hasDelegatedTasks() {
+        return this.delegated;
+    }
+
+    /**
+     * Runs the tasks of the engine. The connection must not be read until they are done.
+     * @param executor where to run the tasks
+     * @param done what to run once the tasks are done, to have the connection read again
+     */
+    public void runDelegatedTasks(Executor executor, Runnable done) {
+        this.delegated = false;
+        executor.execute(() -> {
+            try {
+                for (Runnable task = this.engine.getDelegatedTask(); task != null; task = this.engine.getDelegatedTask()) {
+                    task.run();
+                }
+            } finally {
+                done.run();
+            }
+        });
+    }
+
+    /**
+     * Wraps bytes to send into netOut
+     * @param source the bytes to send, none to produce a handshake message
+     * @throws IOException if the engine fails
+     */
+    void wrap(ByteBuffer source) throws IOException {
+        do {
+            this.netOut = grow(this.netOut, this.engine.getSession().getPacketBufferSize());
+            SSLEngineResult result = this.engine.wrap(source, this.netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) return;
+        } while (source.hasRemaining());
+    }
+
+    /**
+     * Grows a buffer in write mode so it has room for the given number of bytes
+     * @param buffer the buffer
+     * @param room the number of bytes that must fit after the ones in the buffer
+     * @return the buffer, or a bigger one holding the same bytes
+     */
+    static ByteBuffer grow(ByteBuffer buffer, int room) {
+        if (buffer.remaining() >= room) return buffer;
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.position() + room, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Grows the buffer so a frame of the given size fits. Must be called while the buffer is in read mode.
+     * @param size the number of bytes that must fit
+     */
+    void ensureCapacity(int size) {
+        if (this.buffer.capacity() >= size) return;
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, this.buffer.capacity() * 2));
+        bigger.put(this.buffer);
+        bigger.flip();
+        this.buffer = bigger;
+    }
+
+    /**
+     * Writes as much of the pending handshake reply, and of the TLS handshake, as the channel takes
+     * @return true if nothing is left to write
+     * @throws IOException if the write fails
+     */
+    public boolean flush() throws IOException {
+        if (this.engine != null) {
+            if (this.reply != null) {
+                wrap(this.reply);
+                this.reply = null;
+            }
+            this.netOut.flip();
+            try {
+                this.channel.write(this.netOut);
+                return !this.netOut.hasRemaining();
+            } finally {
+                this.netOut.compact();
+            }
+        }
+        if (this.reply == null) return true;
+
+        this.channel.write(this.reply);
+        if (this.reply.hasRemaining()) return false;
+        this.reply = null;
+        return true;
+    }
+
+    /**
+     * Checks whether the peer is taking too long to get the connection going. That takes the TLS handshake,
+     * if any, and the 4 bytes telling a legacy connection from a framed one with its handshake.
+     * @param now the current time, in milliseconds
+     * @return true if the connection is still being set up PeerConnection.HANDSHAKE_TIMEOUT_MS after it was accepted
+     */
+    public boolean isStalled(long now) {
+        return this.state != FRAMED && this.state != LEGACY && now - this.acceptedAt > PeerConnection.HANDSHAKE_TIMEOUT_MS;
+    }
+
+    /**
+     * Legacy message accessor. Only meaningful once the peer closed the connection.
+     * @return the complete ObjectOutputStream stream of a legacy connection, or null for framed connections
+     */
+    public byte[] getLegacyMessage() {
+        return this.legacyBytes == null ? null : this.legacyBytes.toByteArray();
+    }
+
+    /**
+     * Remote address accessor
+     * @return the address the peer connected from
+     */
+    public InetAddress getRemoteAddress() {
+        return this.channel.socket().getInetAddress();
+    }
+
+    /**
+     * Closes the channel
+     */
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class puts the numbered PUTs from each sender back in order and drops the copies that arrive more than once.
+ * A PUT that arrives ahead of an earlier one is held back until the gap is filled, for GAP_TIMEOUT_MS at most,
+ * since the earlier one may have been lost for good. If it turns up after all, it is shown late rather than dropped.
+ * Acknowledgements are owed rather than sent right away, so one ACK covers everything a sender sent in a while.
+ */
+public class Inbox {
+    // PUTs held back per sender, a PUT further ahead than that is dropped and sent again later
+    static final int WINDOW = 1024;
+
+    // How long PUTs are held back waiting for an earlier one, longer than the sender keeps sending it
+    static final long GAP_TIMEOUT_MS = Outbox.RETRANSMIT_MS * (Outbox.MAX_ATTEMPTS + 1);
+
+    /**
+     * This class represents an acknowledgement owed to a sender
+     */
+    static class Acknowledgement {
+        String aliasSender;
+        String ip;
+        int port;
+        long session;
+        long upTo;
+
+        /**
+         * Constructor for the Acknowledgement class
+         * @param aliasSender the alias of the sender
+         * @param ip the IP address of the sender
+         * @param port the port of the sender
+         * @param session the session of the sender
+         * @param upTo the number up to which every PUT from the sender was shown or skipped
+         */
+        Acknowledgement(String aliasSender, String ip, int port, long session, long upTo) {
+            this.aliasSender = aliasSender;
+            this.ip = ip;
+            this.port = port;
+            this.session = session;
+            this.upTo = upTo;
+        }
+    }
+
+    /**
+     * This class represents the PUTs from one sender
+     */
+    static class Window {
+        long session;
+
+        // Lowest number not shown yet. Everything below was shown, or skipped if it is in skipped.
+        long next;
+
+        // PUTs that arrived ahead of next, by number
+        TreeMap<Long, JsonObject> held;
+
+        // Numbers that were given up on, so they are still shown if they arrive late
+        TreeSet<Long> skipped;
+
+        // When the oldest PUT that is held back started waiting
+        long heldSince;
+
+        // Where the sender is acknowledged, and whether a PUT arrived since it last was
+        String ip;
+        int port;
+        boolean owed;
+
+        /**
+         * Constructor for the Window class
+         * @param session the session of the sender
+         * @param next the lowest number the sender may still send
+         */
+        Window(long session, long next) {
+            this.session = session;
+            this.next = next;
+            this.held = new TreeMap<>();
+            this.skipped = new TreeSet<>();
+        }
+    }
+
+    // Windows keyed by the alias of the sender
+    Map<String, Window> windows;
+
+    /**
+     * Constructor for the Inbox class
+     */
+    public Inbox() {
+        this.windows = new HashMap<>();
+    }
+
+    /**
+     * Takes a numbered PUT that arrived
+     * @param putJson the message
+     * @param now the current time, from System.currentTimeMillis
+     * @return the messages that can be shown now, in order, possibly none
+     */
+    public synchronized List<JsonObject> accept(JsonObject putJson, long now) {
+        JsonObject parameters = putJson.getJsonObject("parameters");
+        String aliasSender = parameters.getString("aliasSender");
+        long session = parameters.getJsonNumber("session").longValue();
+        long seq = parameters.getJsonNumber("seq").longValue();
+        long first = parameters.getJsonNumber("first").longValue();
+
+        // A new session means the sender started over
+        Window window = this.windows.get(aliasSender);
+        if (window == null || window.session != session) {
+            window = new Window(session, first);
+            this.windows.put(aliasSender, window);
+        }
+        window.ip = parameters.getString("ipSender");
+        window.port = parameters.getInt("portSender");
+        window.owed = true;
+
+        List<JsonObject> released = new ArrayList<>();
+
+        // The sender got acknowledgements for everything below first, so nothing lower will arrive anymore
+        window.skipped.headSet(first).clear();
+        if (first > window.next) skip(window, first, false, released);
+
+        if (seq < window.next) {
+            // Either a copy of one that was shown or one that arrived after its gap was skipped
+            if (window.skipped.remove(seq)) released.add(putJson);
+            return released;
+        }
+        if (seq - window.next >= WINDOW || window.held.putIfAbsent(seq, putJson) != null) return released;
+
+        if (window.held.size() == 1) window.heldSince = now;
+        drain(window, released, now);
+        return released;
+    }
+
+    /**
+     * Gives up on the gaps that held PUTs back for GAP_TIMEOUT_MS
+     * @param now the current time, from System.currentTimeMillis
+     * @return the messages that can be shown now, in order for each sender, possibly none
+     */
+    public synchronized List<JsonObject> expire(long now) {
+        List<JsonObject> released = new ArrayList<>();
+        for (Window window : this.windows.values()) {
+            if (window.held.isEmpty() || now - window.heldSince < GAP_TIMEOUT_MS) continue;
+            skip(window, window.held.firstKey(), true, released);
+            drain(window, released, now);
+        }
+        return released;
+    }
+
+    /**
+     * Collects the acknowledgements owed since the last call. Copies and PUTs that are held back are covered as well,
+     * since the sender learns it doesn't need to send anything up to the number again.
+     * @return one acknowledgement per sender that sent a PUT since the last call
+     */
+    public synchronized List<Acknowledgement> owed() {
+        List<Acknowledgement> owed = new ArrayList<>();
+        for (Map.Entry<String, Window> entry : this.windows.entrySet()) {
+            Window window = entry.getValue();
+            if (!window.owed) continue;
+            window.owed = false;
+            owed.add(new Acknowledgement(entry.getKey(), window.ip, window.port, window.session, window.next - 1));
+        }
+        return owed;
+    }
+
+    /**
+     * Moves the start of a window forward, releasing the held PUTs it passes
+     * @param window the window
+     * @param to the new lowest number not shown
+     * @param late true if the numbers passed over may still arrive, false if they were all acknowledged
+     * @param released where to add the released messages
+     */
+    static void skip(Window window, long to, boolean late, List<JsonObject> released) {
+        Iterator<Map.Entry<Long, JsonObject>> iterator = window.held.headMap(to).entrySet().iterator();
+        while (iterator.hasNext()) {
+            released.add(iterator.next().getValue());
+            iterator.remove();
+        }
+
+        // Only gaps up to the first held PUT are skipped late, so there are fewer than WINDOW of them
+        for (long seq = window.next; late && seq < to; seq++) {
+            window.skipped.add(seq);
+        }
+        while (window.skipped.size() > WINDOW) {
+            window.skipped.pollFirst();
+        }
+        window.next = to;
+    }
+
+    /**
+     * Releases the held PUTs that follow on from the start of a window
+     * @param window the window
+     * @param released where to add the released messages
+     * @param now the current time, from System.currentTimeMillis
+     */
+    static void drain(Window window, List<JsonObject> released, long now) {
+        boolean moved = false;
+        for (JsonObject putJson = window.held.remove(window.next); putJson != null; putJson = window.held.remove(window.next)) {
+            released.add(putJson);
+            window.next++;
+            moved = true;
+        }
+        // Whatever is still held now waits for a new gap
+        if (moved) window.heldSince = now;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,381 @@
+import javax.json.JsonObject;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class puts a ring of clients running in this JVM under load. Random clients send PUTs of a fixed size
+ * to random other clients at a fixed total rate, and every second the generator reports how many arrived and
+ * how long they took. Unlike the JMH benchmarks in jmh, which measure one sender at a time as fast as it can go,
+ * this shows how the ring holds up under many concurrent senders at a chosen rate, e.g.
+ * java LoadGenerator --nodes 16 --rate 5000 --size 256 --seconds 10 --persistent --batch
+ * With --hosts k the clients are spread over the loopback addresses 127.0.0.1 to 127.0.0.k.
+ * With --churn it stress tests the membership protocol instead: every client joins at once, then every other client
+ * leaves while new clients join through the leaving ones, and the ring is checked after each step, e.g.
+ * java LoadGenerator --churn --nodes 24 --batch
+ */
+public class LoadGenerator {
+    // How often the senders are woken up to send their share of the rate
+    static final long TICK_MS = 10;
+
+    // How long the generator waits for the last messages after it stopped sending
+    static final long DRAIN_MS = 5000;
+
+    // Port of the first client of the ring, the others follow on consecutive ports
+    static final int FIRST_PORT = 7000;
+    static final int DEFAULT_RING_SIZE = 8;
+
+    // How long the ring gets to settle after the last JOIN
+    static final long SETTLE_MS = 1000;
+
+    // How long the ring gets to settle after churning, when the leaving clients still pass on changes
+    static final long CHURN_SETTLE_MS = 2000;
+
+    int rate;
+    int size;
+    int seconds;
+    List<Chat> ring;
+    List<Client> clients;
+
+    LongAdder sent;
+    LongAdder failed;
+    LongAdder delivered;
+
+    // Time from sending a PUT to its arrival, in microseconds
+    Histogram latency;
+
+    // Messages owed to the rate that didn't add up to a whole message yet
+    double owed;
+
+    /**
+     * Constructor for the LoadGenerator class
+     * @param ring the clients to put under load
+     * @param rate the number of PUTs per second sent by all clients together
+     * @param size the number of characters in each message
+     * @param seconds how long to send for
+     */
+    public LoadGenerator(List<Chat> ring, int rate, int size, int seconds) {
+        this.ring = ring;
+        this.rate = rate;
+        this.size = size;
+        this.seconds = seconds;
+        this.clients = new ArrayList<>();
+        this.sent = new LongAdder();
+        this.failed = new LongAdder();
+        this.delivered = new LongAdder();
+        this.latency = new Histogram();
+
+        for (Chat chat : ring) {
+            this.clients.add(new Client(chat));
+            chat.deliveryListener = this::arrived;
+        }
+    }
+
+    /**
+     * Starts a ring of clients spread over several loopback addresses, 127.0.0.1 to 127.0.0.hosts,
+     * which stand in for machines since every client listens on its own address only.
+     * Every client joins through the first one at the same time, so the order of the ring is whatever order
+     * the joins are accepted in, or the order of the alias hashes with --fingers or --bidirectional.
+     * @param size the number of clients
+     * @param hosts the number of loopback addresses, or 1 to run every client on localhost
+     * @param options the chat options to apply to every client
+     * @return the clients in the order they were started, which is the order of their ports
+     * @throws InterruptedException if interrupted while the ring settles
+     */
+    static List<Chat> ring(int size, int hosts, String[] options) throws InterruptedException {
+        List<Chat> ring = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            ring.add(start(i, hosts, options));
+        }
+        Thread.sleep(200);
+
+        // Everyone joins at once, which the membership state machine of the first client sorts out
+        Chat first = ring.get(0);
+        ring.subList(1, size).parallelStream().forEach(chat -> chat.joinRing(first.getHost(), first.getPort()));
+
+        // Fingers are fixed one at a time, so give every finger a chance to be fixed once
+        boolean fingers = ring.get(0).fingers != null;
+        Thread.sleep(fingers ? SETTLE_MS + Server.FIX_FINGERS_INTERVAL_MS * FingerTable.BITS : SETTLE_MS);
+        return ring;
+    }
+
+    /**
+     * Starts a client that is alone in its ring
+     * @param index the number of the client, which gives its alias, port and loopback address
+     * @param hosts the number of loopback addresses, or 1 to run every client on localhost
+     * @param options the chat options to apply to the client
+     * @return the client
+     */
+    static Chat start(int index, int hosts, String[] options) {
+        Chat chat = new Chat("node" + index, FIRST_PORT + index);
+        if (hosts > 1) {
+            chat.setHost("127.0.0." + (1 + index % hosts));
+            chat.bindToHost = true;
+        }
+        Chat.configure(chat, options, 0);
+        Thread server = new Thread(new Server(chat));
+        server.setDaemon(true);
+        server.start();
+        return chat;
+    }
+
+    /**
+     * Checks that following the successors from the first client leads around every client once,
+     * and that every client is the predecessor of its successor
+     * @param ring the clients the ring should be made of
+     * @return the problems found, none if the ring is consistent
+     */
+    static List<String> check(List<Chat> ring) {
+        Map<String, Chat> byAddress = new HashMap<>();
+        for (Chat chat : ring) {
+            byAddress.put(chat.getHost() + ":" + chat.getPort(), chat);
+        }
+
+        List<String> problems = new ArrayList<>();
+        Set<Chat> seen = new HashSet<>();
+        Chat first = ring.get(0);
+        Chat chat = first;
+        do {
+            seen.add(chat);
+            Neighbours neighbours = chat.getNeighbours();
+            Chat next = byAddress.get(neighbours.ipSuccessor + ":" + neighbours.portSuccessor);
+            if (next == null) {
+                problems.add(String.format("%s has %s:%d as its successor, which isn't in the ring",
+                    chat.getAlias(), neighbours.ipSuccessor, neighbours.portSuccessor));
+                break;
+            }
+            Neighbours following = next.getNeighbours();
+            if (!following.isPredecessor(chat.getHost(), chat.getPort())) {
+                problems.add(String.format("%s follows %s but has %s:%d as its predecessor",
+                    next.getAlias(), chat.getAlias(), following.ipPredecessor, following.portPredecessor));
+            }
+            chat = next;
+        } while (chat != first && !seen.contains(chat));
+
+        if (seen.size() < ring.size()) {
+            problems.add(String.format("The successors lead around %d of %d clients", seen.size(), ring.size()));
+        }
+        return problems;
+    }
+
+    /**
+     * Prints the result of a check of the ring
+     * @param out where the report goes
+     * @param step what was done to the ring before the check
+     * @param ring the clients the ring should be made of
+     * @return true if the ring is consistent
+     */
+    static boolean report(PrintStream out, String step, List<Chat> ring) {
+        List<String> problems = check(ring);
+        out.printf("%-34s %s%n", step, problems.isEmpty() ? "consistent ring of " + ring.size() + " clients" : "BROKEN");
+        for (String problem : problems) {
+            out.printf("  %s%n", problem);
+        }
+        return problems.isEmpty();
+    }
+
+    /**
+     * Stress tests the membership protocol on a ring whose clients all joined at once: every other client leaves
+     * while a quarter as many new clients join through the leaving ones, which gives the protocol the most
+     * concurrent changes to put in order
+     * @param ring the clients, in the order they were started
+     * @param hosts the number of loopback addresses, or 1 to run every client on localhost
+     * @param options the chat options to apply to the new clients
+     * @param out where the report goes
+     * @return true if the ring was consistent after every step
+     * @throws InterruptedException if interrupted while the ring settles
+     * @throws ExecutionException if a leave or join failed
+     */
+    static boolean churn(List<Chat> ring, int hosts, String[] options, PrintStream out) throws InterruptedException, ExecutionException {
+        boolean consistent = report(out, "After concurrent joins:", ring);
+
+        List<Chat> staying = new ArrayList<>();
+        List<Chat> leaving = new ArrayList<>();
+        for (int i = 0; i < ring.size(); i++) {
+            (i % 2 == 0 ? staying : leaving).add(ring.get(i));
+        }
+        List<Chat> joining = new ArrayList<>();
+        for (int i = 0; i < ring.size() / 4; i++) {
+            joining.add(start(ring.size() + i, hosts, options));
+        }
+        Thread.sleep(200);
+
+        ExecutorService pool = Executors.newCachedThreadPool();
+        List<Future<?>> left = new ArrayList<>();
+        List<Future<Boolean>> joined = new ArrayList<>();
+        for (Chat chat : leaving) {
+            left.add(pool.submit(() -> new Client(chat).leave()));
+        }
+        for (int i = 0; i < joining.size(); i++) {
+            Chat chat = joining.get(i);
+            Chat through = leaving.get(i);
+            joined.add(pool.submit(() -> chat.joinRing(through.getHost(), through.getPort())));
+        }
+        for (Future<?> leave : left) {
+            leave.get();
+        }
+        List<Chat> members = new ArrayList<>(staying);
+        for (int i = 0; i < joining.size(); i++) {
+            if (joined.get(i).get()) {
+                members.add(joining.get(i));
+            } else {
+                out.printf("%s couldn't join through %s%n", joining.get(i).getAlias(), leaving.get(i).getAlias());
+                consistent = false;
+            }
+        }
+        pool.shutdown();
+
+        Thread.sleep(CHURN_SETTLE_MS);
+        String step = String.format("After %d leaves and %d joins:", leaving.size(), joining.size());
+        return report(out, step, members) && consistent;
+    }
+
+    /**
+     * Records a PUT that arrived. The message starts with the time it was sent, which is valid here
+     * since every client runs in this JVM.
+     * @param putJson the message
+     */
+    void arrived(JsonObject putJson) {
+        String message = putJson.getJsonObject("parameters").getString("message");
+        long sentAt = Long.parseLong(message.substring(0, message.indexOf(' ')));
+        this.latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+        this.delivered.increment();
+    }
+
+    /**
+     * Creates a message of the configured size that starts with the time it is sent
+     * @return the message
+     */
+    String message() {
+        StringBuilder message = new StringBuilder().append(System.nanoTime()).append(' ');
+        while (message.length() < this.size) {
+            message.append('x');
+        }
+        return message.toString();
+    }
+
+    /**
+     * Sends the PUTs owed to the rate since the last tick, each from a random client to a random other one
+     */
+    void tick() {
+        this.owed += this.rate * TICK_MS / 1000.0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (; this.owed >= 1; this.owed--) {
+            int from = random.nextInt(this.ring.size());
+            int to = (from + 1 + random.nextInt(this.ring.size() - 1)) % this.ring.size();
+            this.sent.increment();
+            this.clients.get(from).put(this.ring.get(to).getAlias(), message()).whenComplete((result, error) -> {
+                if (error != null) this.failed.increment();
+            });
+        }
+    }
+
+    /**
+     * Sends for the configured time, printing a line per second, and then waits for the last messages
+     * @param out where the report goes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run(PrintStream out) throws InterruptedException {
+        ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor();
+        long start = System.nanoTime();
+        sender.scheduleAtFixedRate(this::tick, 0, TICK_MS, TimeUnit.MILLISECONDS);
+
+        long lastDelivered = 0;
+        for (int second = 1; second <= this.seconds; second++) {
+            Thread.sleep(1000);
+            long delivered = this.delivered.sum();
+            out.printf("%3d s  sent %8d  delivered %8d  %8d msg/s  p50 %8d us  p99 %8d us%n", second, this.sent.sum(),
+                delivered, delivered - lastDelivered, this.latency.getPercentile(0.50), this.latency.getPercentile(0.99));
+            lastDelivered = delivered;
+        }
+        sender.shutdown();
+        sender.awaitTermination(1, TimeUnit.SECONDS);
+        double sendingSeconds = (System.nanoTime() - start) / 1e9;
+
+        long deadline = System.currentTimeMillis() + DRAIN_MS;
+        while (this.delivered.sum() + this.failed.sum() < this.sent.sum() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        out.printf("%nOffered   %d msg/s of %d characters for %d s across %d clients%n", this.rate, this.size, this.seconds, this.ring.size());
+        out.printf("Sent      %d, failed %d, delivered %d, lost %d%n", this.sent.sum(), this.failed.sum(), this.delivered.sum(),
+            this.sent.sum() - this.failed.sum() - this.delivered.sum());
+        out.printf("Achieved  %.1f msg/s%n", this.delivered.sum() / sendingSeconds);
+        out.printf("Latency   p50 %d  p90 %d  p99 %d  p99.9 %d  max %d us%n", this.latency.getPercentile(0.50),
+            this.latency.getPercentile(0.90), this.latency.getPercentile(0.99), this.latency.getPercentile(0.999), this.latency.getMax());
+    }
+
+    /**
+     * Runs the load generator, or the membership stress test with --churn, which exits with 1 if the ring broke
+     * @param args [--nodes n] [--hosts k] [--rate msgs/s] [--size characters] [--seconds s] [--churn] followed by any options
+     *             of the chat, which apply to every client of the ring
+     * @throws Exception if the ring can't be set up
+     */
+    public static void main(String[] args) throws Exception {
+        int nodes = DEFAULT_RING_SIZE;
+        int hosts = 1;
+        int rate = 1000;
+        int size = 64;
+        int seconds = 10;
+        boolean churn = false;
+        List<String> options = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--nodes":
+                    nodes = Integer.parseInt(args[++i]);
+                    break;
+                case "--hosts":
+                    hosts = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    rate = Integer.parseInt(args[++i]);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--churn":
+                    churn = true;
+                    break;
+                default:
+                    options.add(args[i]);
+            }
+        }
+        if (nodes < (churn ? 4 : 2)) {
+            throw new IllegalArgumentException(churn ? "Churning needs at least 4 clients" : "The ring needs at least 2 clients");
+        }
+
+        // The chat prints a line for every message it handles, which would drown the report and skew it
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+
+        out.printf("Options: %s%n", options.isEmpty() ? "(none)" : String.join(" ", options));
+        if (hosts > 1) out.printf("Hosts:   127.0.0.1 to 127.0.0.%d%n", hosts);
+        List<Chat> ring = ring(nodes, hosts, options.toArray(new String[0]));
+        if (churn) {
+            System.exit(churn(ring, hosts, options.toArray(new String[0]), out) ? 0 : 1);
+        }
+        new LoadGenerator(ring, rate, size, seconds).run(out);
+
+        // The servers and their worker pools never stop on their own
+        System.exit(0);
+    }
+}
\ No newline at end of file
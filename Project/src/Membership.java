@@ -0,0 +1,214 @@
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the membership state machine of a client. Joins and leaves change the neighbours under its lock,
+ * one at a time, and a change that arrives by message only applies while its precondition holds:
+ * an ACCEPT must answer a pending join, a NEWSUCCESSOR must come from the current successor and a LEAVE from the
+ * current predecessor. A message that overtook the change it depends on is parked and tried again after every
+ * change, so concurrent joins and leaves apply in one consistent order instead of overwriting each other.
+ * What a change sends is deferred until the lock is released, so a slow peer can't hold up the other users of the lock,
+ * like the heartbeat answers.
+ */
+public class Membership {
+    /**
+     * The states of a client
+     */
+    public enum State {
+        // In a ring, possibly alone, and accepting joins
+        MEMBER,
+        // Waiting for the ACCEPT of the client asked to join
+        JOINING,
+        // Gone from the ring, passing on the changes that still reach it
+        LEAVING
+    }
+
+    // How long a parked message waits for its precondition before it is dropped
+    static final long PARK_TIMEOUT_MS = 10000;
+
+    /**
+     * This class represents a message waiting for its precondition
+     */
+    static class Parked {
+        JsonObject message;
+        long deadline;
+
+        /**
+         * Constructor for the Parked class
+         * @param message the membership message
+         * @param deadline when to drop the message, in milliseconds
+         */
+        Parked(JsonObject message, long deadline) {
+            this.message = message;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * This class represents a neighbour handed to this client by a NEWSUCCESSOR or LEAVE, and the client that handed it over
+     */
+    static class Handover {
+        final String ip;
+        final int port;
+
+        // Address of the connection the message came over, null if it isn't known
+        final String by;
+
+        /**
+         * Constructor for the Handover class
+         * @param ip the IP address of the neighbour
+         * @param port the port of the neighbour
+         * @param by the address of the connection the message came over, or null
+         */
+        Handover(String ip, int port, String by) {
+            this.ip = ip;
+            this.port = port;
+            this.by = by;
+        }
+
+        /**
+         * Checks whether a message from the neighbour may come over a connection of the client that handed it over,
+         * which happens when that client left and passes on what still reaches it
+         * @param neighbour the client the message is from
+         * @param sender the address of the connection the message came over
+         * @return true if the sender is the client that handed the neighbour over
+         */
+        boolean relayedBy(FingerTable.Finger neighbour, String sender) {
+            return this.by != null && this.ip.equals(neighbour.ip) && this.port == neighbour.port && Server.connectedFrom(sender, this.by);
+        }
+    }
+
+    State state;
+
+    // The neighbours at the time the client left, which changes reaching it afterwards are passed on to
+    Neighbours left;
+
+    // The successor and predecessor the last NEWSUCCESSOR and LEAVE handed over, null until one did
+    Handover successorHandover;
+    Handover predecessorHandover;
+
+    List<Parked> parked;
+
+    // Sends the changes made under the lock call for, run once the lock is released
+    List<Runnable> deferred;
+
+    /**
+     * Constructor for the Membership class
+     */
+    public Membership() {
+        this.state = State.MEMBER;
+        this.parked = new ArrayList<>();
+        this.deferred = new ArrayList<>();
+    }
+
+    /**
+     * State accessor
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * Starts a join, which only a client that is alone in its ring can do
+     * @param neighbours the current neighbours of the client
+     * @param self this client
+     * @return true if the client is now joining
+     */
+    public synchronized boolean beginJoin(Neighbours neighbours, FingerTable.Finger self) {
+        if (this.state != State.MEMBER || !neighbours.isSuccessor(self.ip, self.port)) return false;
+        this.state = State.JOINING;
+        return true;
+    }
+
+    /**
+     * Ends a join, successful or not, and wakes up the client waiting for it
+     */
+    public synchronized void endJoin() {
+        if (this.state == State.JOINING) this.state = State.MEMBER;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the pending join is answered
+     * @param timeoutMs how long to wait at most
+     * @return true if the client was accepted in time
+     * @throws InterruptedException if the client is interrupted while waiting
+     */
+    public synchronized boolean awaitJoin(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (this.state == State.JOINING) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Starts a leave. From now on the client passes changes on instead of applying them.
+     * @param neighbours the neighbours the client leaves
+     */
+    public synchronized void beginLeave(Neighbours neighbours) {
+        this.state = State.LEAVING;
+        this.left = neighbours;
+    }
+
+    /**
+     * Parks a message whose precondition doesn't hold yet
+     * @param message the membership message
+     */
+    public synchronized void park(JsonObject message) {
+        this.parked.add(new Parked(message, System.currentTimeMillis() + PARK_TIMEOUT_MS));
+    }
+
+    /**
+     * Takes the parked messages to try them again, dropping those that waited too long
+     * @return the messages still worth trying, oldest first
+     */
+    public synchronized List<Parked> unpark() {
+        List<Parked> waiting = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Parked message : this.parked) {
+            if (message.deadline >= now) {
+                waiting.add(message);
+            } else {
+                System.out.printf("Dropped a %s that no longer fits the ring%n", message.message.getString("type"));
+            }
+        }
+        this.parked.clear();
+        return waiting;
+    }
+
+    /**
+     * Parks a message again that still can't be applied, keeping its deadline
+     * @param message the message taken by unpark
+     */
+    public synchronized void repark(Parked message) {
+        this.parked.add(message);
+    }
+
+    /**
+     * Defers a task until the lock is released, for sends the change being made calls for
+     * @param task the task to run
+     */
+    public synchronized void defer(Runnable task) {
+        this.deferred.add(task);
+    }
+
+    /**
+     * Runs the deferred tasks, in the order they were deferred. Called right after releasing the lock,
+     * by the thread that made the changes.
+     */
+    public void runDeferred() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            tasks = this.deferred;
+            this.deferred = new ArrayList<>();
+        }
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,268 @@
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps PUTs for receivers that aren't in the ring until they join.
+ * Messages are appended to memory-mapped segment files, so storing one is a copy into memory and the operating
+ * system writes it out in the background. Segments are only forced to disk when they fill up or the log is closed.
+ * A delivered message is marked in place, and a segment is deleted once everything in it was delivered.
+ */
+public class MessageLog {
+    // Size of one segment file
+    static final int SEGMENT_BYTES = 1 << 20;
+
+    // Each record is [int length][byte state][UTF-8 JSON], and a length of 0 marks the end of a segment
+    static final int HEADER_BYTES = 5;
+    static final byte PENDING = 1;
+    static final byte DELIVERED = 0;
+
+    /**
+     * This class represents one segment file
+     */
+    static class Segment {
+        File file;
+        MappedByteBuffer buffer;
+        int pending;
+
+        /**
+         * Constructor for the Segment class. Maps the whole file, creating it if needed.
+         * @param file the segment file
+         * @throws IOException if the file can't be mapped
+         */
+        Segment(File file) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+            }
+        }
+    }
+
+    /**
+     * This class represents a stored message and where its record is
+     */
+    public static class Entry {
+        Segment segment;
+        int offset;
+        JsonObject putJson;
+
+        /**
+         * Constructor for the Entry class
+         * @param segment the segment holding the record
+         * @param offset the position of the record in the segment
+         * @param putJson the stored message
+         */
+        Entry(Segment segment, int offset, JsonObject putJson) {
+            this.segment = segment;
+            this.offset = offset;
+            this.putJson = putJson;
+        }
+
+        /**
+         * Message accessor
+         * @return the stored PUT
+         */
+        public JsonObject getMessage() {
+            return this.putJson;
+        }
+    }
+
+    File directory;
+    List<Segment> segments;
+
+    // Pending messages keyed by receiver alias, oldest first
+    Map<String, List<Entry>> pending;
+
+    /**
+     * Constructor for the MessageLog class. Reads back the messages still pending in the directory.
+     * @param directory where the segment files are kept
+     * @throws IOException if the directory or a segment can't be opened
+     */
+    public MessageLog(File directory) throws IOException {
+        this.directory = directory;
+        this.segments = new ArrayList<>();
+        this.pending = new LinkedHashMap<>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+        Arrays.sort(files, (a, b) -> Long.compare(sequence(a), sequence(b)));
+        for (File file : files) {
+            Segment segment = new Segment(file);
+            this.segments.add(segment);
+            recover(segment);
+        }
+
+        // Only the last segment takes new records, so older ones with nothing pending can go right away
+        for (Segment segment : new ArrayList<>(this.segments)) {
+            if (segment != current()) compact(segment);
+        }
+        if (this.segments.isEmpty()) roll();
+    }
+
+    /**
+     * Reads the sequence number of a segment from its file name
+     * @param file the segment file
+     * @return the sequence number
+     */
+    static long sequence(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    /**
+     * Indexes the pending records of a segment and moves its write position past the last record
+     * @param segment the segment to read
+     */
+    void recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= SEGMENT_BYTES) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > SEGMENT_BYTES) break;
+
+            if (buffer.get(offset + 4) == PENDING) {
+                byte[] payload = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    payload[i] = buffer.get(offset + HEADER_BYTES + i);
+                }
+                try (JsonReader reader = Json.createReader(new StringReader(new String(payload, StandardCharsets.UTF_8)))) {
+                    index(new Entry(segment, offset, reader.readObject()));
+                }
+            }
+            offset += HEADER_BYTES + length;
+        }
+        buffer.position(offset);
+    }
+
+    /**
+     * Adds a pending record to the index of its receiver
+     * @param entry the record
+     */
+    void index(Entry entry) {
+        String aliasReceiver = entry.putJson.getJsonObject("parameters").getString("aliasReceiver");
+        this.pending.computeIfAbsent(aliasReceiver, key -> new ArrayList<>()).add(entry);
+        entry.segment.pending++;
+    }
+
+    /**
+     * Current segment accessor
+     * @return the segment that takes new records, or null if there is none yet
+     */
+    Segment current() {
+        return this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+    }
+
+    /**
+     * Starts a new segment, forcing the full one to disk first
+     * @throws IOException if the new segment can't be created
+     */
+    void roll() throws IOException {
+        Segment full = current();
+        long next = 0;
+        if (full != null) {
+            full.buffer.force();
+            next = sequence(full.file) + 1;
+        }
+        this.segments.add(new Segment(new File(this.directory, "segment-" + next + ".log")));
+        if (full != null) compact(full);
+    }
+
+    /**
+     * Stores a PUT until its receiver joins
+     * @param putJson the message
+     * @throws IOException if the message is larger than a segment or a new segment can't be created
+     */
+    public synchronized void append(JsonObject putJson) throws IOException {
+        byte[] payload = putJson.toString().getBytes(StandardCharsets.UTF_8);
+        if (HEADER_BYTES + payload.length + 4 > SEGMENT_BYTES) {
+            throw new IOException("Message of " + payload.length + " bytes doesn't fit in a segment");
+        }
+        // Keep room for the zero length that ends the segment
+        if (current().buffer.remaining() < HEADER_BYTES + payload.length + 4) roll();
+
+        Segment segment = current();
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = buffer.position();
+        buffer.position(offset + HEADER_BYTES);
+        buffer.put(payload);
+        buffer.put(offset + 4, PENDING);
+        // The length goes in last, so a record cut short by a crash reads as the end of the segment
+        buffer.putInt(offset, payload.length);
+
+        index(new Entry(segment, offset, putJson));
+    }
+
+    /**
+     * Takes the pending messages for a receiver out of the index. They stay on disk until they are marked delivered.
+     * @param aliasReceiver the name of the receiver
+     * @return the messages, oldest first
+     */
+    public synchronized List<Entry> take(String aliasReceiver) {
+        List<Entry> entries = this.pending.remove(aliasReceiver);
+        return entries != null ? entries : new ArrayList<>();
+    }
+
+    /**
+     * Puts a message that couldn't be delivered back into the index
+     * @param entry the message taken before
+     */
+    public synchronized void restore(Entry entry) {
+        this.pending.computeIfAbsent(entry.putJson.getJsonObject("parameters").getString("aliasReceiver"), key -> new ArrayList<>()).add(entry);
+    }
+
+    /**
+     * Marks a message as delivered, deleting its segment if nothing else in it is pending
+     * @param entry the message taken before
+     */
+    public synchronized void delivered(Entry entry) {
+        entry.segment.buffer.put(entry.offset + 4, DELIVERED);
+        entry.segment.pending--;
+        if (entry.segment != current()) compact(entry.segment);
+    }
+
+    /**
+     * Deletes a segment that has nothing pending any more
+     * @param segment the segment
+     */
+    void compact(Segment segment) {
+        if (segment.pending > 0) return;
+        this.segments.remove(segment);
+        if (!segment.file.delete()) {
+            System.out.printf("Couldn't delete %s%n", segment.file);
+        }
+    }
+
+    /**
+     * Counts the messages waiting for receivers
+     * @return the number of pending messages per receiver alias
+     */
+    public synchronized Map<String, Integer> getPending() {
+        Map<String, Integer> counts = new HashMap<>();
+        this.pending.forEach((alias, entries) -> counts.put(alias, entries.size()));
+        return counts;
+    }
+
+    /**
+     * Forces all segments to disk
+     */
+    public synchronized void close() {
+        for (Segment segment : this.segments) {
+            segment.buffer.force();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,250 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.json.JsonObject;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts what goes through a client: messages per type in each direction, bytes, failed connects,
+ * how long sends take, and how long and how many hops PUTs need to arrive.
+ * Counting costs an uncontended increment, so it can stay on under load. The numbers are published over JMX
+ * and as plain text on a local HTTP endpoint.
+ */
+public class Metrics implements MetricsMXBean {
+    String alias;
+
+    // Message counts keyed by message type
+    Map<String, LongAdder> received;
+    Map<String, LongAdder> sent;
+
+    LongAdder bytesReceived;
+    LongAdder bytesSent;
+    LongAdder connectFailures;
+
+    Histogram sendLatency;
+    Histogram deliveryLatency;
+    Histogram hops;
+
+    /**
+     * Constructor for the Metrics class
+     * @param alias the name of the client being measured
+     */
+    public Metrics(String alias) {
+        this.alias = alias;
+        this.received = new ConcurrentHashMap<>();
+        this.sent = new ConcurrentHashMap<>();
+        this.bytesReceived = new LongAdder();
+        this.bytesSent = new LongAdder();
+        this.connectFailures = new LongAdder();
+        this.sendLatency = new Histogram();
+        this.deliveryLatency = new Histogram();
+        this.hops = new Histogram();
+    }
+
+    /*----- Recording -----*/
+
+    /**
+     * Counts a message handled by the server
+     * @param type the type of the message
+     */
+    public void received(String type) {
+        this.received.computeIfAbsent(type, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Counts the bytes of a message or batch read from a peer
+     * @param bytes the size of the payload
+     */
+    public void receivedBytes(int bytes) {
+        this.bytesReceived.add(bytes);
+    }
+
+    /**
+     * Counts a message that was sent and how long sending it took
+     * @param type the type of the message
+     * @param nanos the time it took to send the message
+     */
+    public void sent(String type, long nanos) {
+        this.sent.computeIfAbsent(type, key -> new LongAdder()).increment();
+        this.sendLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Counts bytes written to a peer
+     * @param bytes the number of bytes
+     */
+    public void sentBytes(int bytes) {
+        this.bytesSent.add(bytes);
+    }
+
+    /**
+     * Counts a peer that couldn't be connected to
+     */
+    public void connectFailed() {
+        this.connectFailures.increment();
+    }
+
+    /**
+     * Adds the hop count and the send time to a PUT, so the receiver can tell how it got there
+     * @param putJson the message about to be sent
+     * @return the message with "hops" and "sentAt" parameters
+     */
+    public static JsonObject stamp(JsonObject putJson) {
+        return Chat.withParameter(Chat.withParameter(putJson, "hops", 0), "sentAt", System.currentTimeMillis());
+    }
+
+    /**
+     * Records how long a stamped PUT took to arrive and how many forwards it took.
+     * The send time comes from the sender's clock, so the latency is only meaningful between clients on one host.
+     * @param putJson the message that arrived here
+     */
+    public void delivered(JsonObject putJson) {
+        JsonObject parameters = putJson.getJsonObject("parameters");
+        if (parameters.containsKey("sentAt")) {
+            this.deliveryLatency.record(System.currentTimeMillis() - parameters.getJsonNumber("sentAt").longValue());
+        }
+        if (parameters.containsKey("hops")) {
+            this.hops.record(parameters.getJsonNumber("hops").longValue());
+        }
+    }
+
+    /*----- Publishing -----*/
+
+    /**
+     * Registers the metrics with the platform MBean server, where JMX tools find them under DistributedChat
+     */
+    public void register() {
+        try {
+            ObjectName name = new ObjectName("DistributedChat:type=Metrics,alias=" + ObjectName.quote(this.alias));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch(JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Serves the report at http://localhost:port/metrics
+     * @param port the port of the endpoint
+     * @throws IOException if the port can't be bound
+     */
+    public void serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = getReport().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Copies counters into a map that is sorted by message type
+     * @param counters the counters to copy
+     * @return the current counts
+     */
+    static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> counts = new TreeMap<>();
+        counters.forEach((type, counter) -> counts.put(type, counter.sum()));
+        return counts;
+    }
+
+    /**
+     * Summarizes a histogram
+     * @param histogram the histogram to summarize
+     * @return count, p50, p90, p99 and max in that order
+     */
+    static Map<String, Long> summary(Histogram histogram) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.getCount());
+        summary.put("p50", histogram.getPercentile(0.50));
+        summary.put("p90", histogram.getPercentile(0.90));
+        summary.put("p99", histogram.getPercentile(0.99));
+        summary.put("max", histogram.getMax());
+        return summary;
+    }
+
+    /*----- MXBean -----*/
+
+    public Map<String, Long> getMessagesReceived() {
+        return snapshot(this.received);
+    }
+
+    public Map<String, Long> getMessagesSent() {
+        return snapshot(this.sent);
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    public long getConnectFailures() {
+        return this.connectFailures.sum();
+    }
+
+    public Map<String, Long> getSendLatencyMicros() {
+        return summary(this.sendLatency);
+    }
+
+    public Map<String, Long> getDeliveryLatencyMillis() {
+        return summary(this.deliveryLatency);
+    }
+
+    public Map<String, Long> getHops() {
+        return summary(this.hops);
+    }
+
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        getMessagesReceived().forEach((type, count) -> line(report, "chat_messages_received_total{type=\"" + type + "\"}", count));
+        getMessagesSent().forEach((type, count) -> line(report, "chat_messages_sent_total{type=\"" + type + "\"}", count));
+        line(report, "chat_bytes_received_total", getBytesReceived());
+        line(report, "chat_bytes_sent_total", getBytesSent());
+        line(report, "chat_connect_failures_total", getConnectFailures());
+        histogram(report, "chat_send_latency_us", this.sendLatency);
+        histogram(report, "chat_delivery_latency_ms", this.deliveryLatency);
+        histogram(report, "chat_hops", this.hops);
+        return report.toString();
+    }
+
+    /**
+     * Adds one metric to a report
+     * @param report the report
+     * @param name the name of the metric, with its labels
+     * @param value the value of the metric
+     */
+    static void line(StringBuilder report, String name, long value) {
+        report.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Adds the count and percentiles of a histogram to a report
+     * @param report the report
+     * @param name the name of the metric
+     * @param histogram the histogram
+     */
+    static void histogram(StringBuilder report, String name, Histogram histogram) {
+        line(report, name + "{quantile=\"0.5\"}", histogram.getPercentile(0.50));
+        line(report, name + "{quantile=\"0.9\"}", histogram.getPercentile(0.90));
+        line(report, name + "{quantile=\"0.99\"}", histogram.getPercentile(0.99));
+        line(report, name + "_max", histogram.getMax());
+        line(report, name + "_count", histogram.getCount());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,60 @@
+import java.util.Map;
+
+/**
+ * This interface is what JMX tools like jconsole see of a client's Metrics
+ */
+public interface MetricsMXBean {
+    /**
+     * Received accessor
+     * @return the number of messages handled per message type
+     */
+    Map<String, Long> getMessagesReceived();
+
+    /**
+     * Sent accessor
+     * @return the number of messages sent per message type
+     */
+    Map<String, Long> getMessagesSent();
+
+    /**
+     * Bytes received accessor
+     * @return the number of bytes received in messages
+     */
+    long getBytesReceived();
+
+    /**
+     * Bytes sent accessor
+     * @return the number of bytes written to peers
+     */
+    long getBytesSent();
+
+    /**
+     * Connect failures accessor
+     * @return how often a peer couldn't be connected to
+     */
+    long getConnectFailures();
+
+    /**
+     * Send latency accessor
+     * @return count, p50, p90, p99 and max of the time it took to send a message, in microseconds
+     */
+    Map<String, Long> getSendLatencyMicros();
+
+    /**
+     * Delivery latency accessor
+     * @return count, p50, p90, p99 and max of the time from sending a PUT to its arrival here, in milliseconds
+     */
+    Map<String, Long> getDeliveryLatencyMillis();
+
+    /**
+     * Hops accessor
+     * @return count, p50, p90, p99 and max of the number of forwards it took a PUT to arrive here
+     */
+    Map<String, Long> getHops();
+
+    /**
+     * Report accessor
+     * @return all metrics in the text format of the HTTP endpoint
+     */
+    String getReport();
+}
\ No newline at end of file
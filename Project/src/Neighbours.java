@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is an immutable snapshot of a client's place in the ring: its successor and its predecessor,
+ * and the clients after the successor that take its place if it fails.
+ * A change never modifies a snapshot but creates the next one, so a reader that holds a snapshot always sees
+ * an IP address, port and node ID that belong together. Every snapshot carries the epoch it was created in.
+ */
+public class Neighbours {
+    // Successor info
+    final String ipSuccessor;
+    final int portSuccessor;
+    final long idSuccessor;
+
+    // Predecessor info
+    final String ipPredecessor;
+    final int portPredecessor;
+    final long idPredecessor;
+
+    // Clients after the successor in ring order, closest first, learned from heartbeats
+    final List<FingerTable.Finger> successors;
+
+    // Number of changes that led to this snapshot
+    final long epoch;
+
+    /**
+     * Constructor for the Neighbours class
+     * @param ipSuccessor the IP address of the successor
+     * @param portSuccessor the port of the successor
+     * @param idSuccessor the node ID of the successor
+     * @param ipPredecessor the IP address of the predecessor
+     * @param portPredecessor the port of the predecessor
+     * @param idPredecessor the node ID of the predecessor
+     * @param successors the clients after the successor, closest first
+     * @param epoch the number of changes that led to this snapshot
+     */
+    public Neighbours(String ipSuccessor, int portSuccessor, long idSuccessor,
+                      String ipPredecessor, int portPredecessor, long idPredecessor,
+                      List<FingerTable.Finger> successors, long epoch) {
+        this.ipSuccessor = ipSuccessor;
+        this.portSuccessor = portSuccessor;
+        this.idSuccessor = idSuccessor;
+        this.ipPredecessor = ipPredecessor;
+        this.portPredecessor = portPredecessor;
+        this.idPredecessor = idPredecessor;
+        this.successors = Collections.unmodifiableList(new ArrayList<>(successors));
+        this.epoch = epoch;
+    }
+
+    /**
+     * Creates the neighbours of a client that is alone in its ring, where it is its own successor and predecessor
+     * @param ip the IP address of the client
+     * @param port the port of the client
+     * @param id the node ID of the client
+     * @return the first snapshot
+     */
+    public static Neighbours alone(String ip, int port, long id) {
+        return new Neighbours(ip, port, id, ip, port, id, Collections.emptyList(), 0);
+    }
+
+    /**
+     * Creates the next snapshot with another successor.
+     * The clients after the old successor are kept until the next heartbeat brings the ones after the new one.
+     * @param ip the IP address of the new successor
+     * @param port the port of the new successor
+     * @param id the node ID of the new successor
+     * @return the next snapshot
+     */
+    public Neighbours withSuccessor(String ip, int port, long id) {
+        return new Neighbours(ip, port, id, this.ipPredecessor, this.portPredecessor, this.idPredecessor, this.successors, this.epoch + 1);
+    }
+
+    /**
+     * Creates the next snapshot with another predecessor
+     * @param ip the IP address of the new predecessor
+     * @param port the port of the new predecessor
+     * @param id the node ID of the new predecessor
+     * @return the next snapshot
+     */
+    public Neighbours withPredecessor(String ip, int port, long id) {
+        return new Neighbours(this.ipSuccessor, this.portSuccessor, this.idSuccessor, ip, port, id, this.successors, this.epoch + 1);
+    }
+
+    /**
+     * Creates the next snapshot with other clients after the successor
+     * @param successors the clients after the successor, closest first
+     * @return the next snapshot, or this one if nothing changed
+     */
+    public Neighbours withSuccessors(List<FingerTable.Finger> successors) {
+        if (sameFingers(this.successors, successors)) return this;
+        return new Neighbours(this.ipSuccessor, this.portSuccessor, this.idSuccessor,
+            this.ipPredecessor, this.portPredecessor, this.idPredecessor, successors, this.epoch + 1);
+    }
+
+    /**
+     * Creates the next snapshot without the successor, which failed. The closest client after it takes its place.
+     * If none is known, this client is left alone in its ring.
+     * @param self this client
+     * @return the next snapshot
+     */
+    public Neighbours skipSuccessor(FingerTable.Finger self) {
+        if (this.successors.isEmpty()) {
+            return new Neighbours(self.ip, self.port, self.id, self.ip, self.port, self.id, this.successors, this.epoch + 1);
+        }
+        FingerTable.Finger next = this.successors.get(0);
+        List<FingerTable.Finger> rest = this.successors.subList(1, this.successors.size());
+        return new Neighbours(next.ip, next.port, next.id, this.ipPredecessor, this.portPredecessor, this.idPredecessor, rest, this.epoch + 1);
+    }
+
+    /**
+     * Successor accessor
+     * @return the successor as a finger
+     */
+    public FingerTable.Finger getSuccessor() {
+        return new FingerTable.Finger(this.idSuccessor, this.ipSuccessor, this.portSuccessor);
+    }
+
+    /**
+     * Predecessor accessor
+     * @return the predecessor as a finger
+     */
+    public FingerTable.Finger getPredecessor() {
+        return new FingerTable.Finger(this.idPredecessor, this.ipPredecessor, this.portPredecessor);
+    }
+
+    /**
+     * Checks whether a peer is the successor
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return true if the peer is the successor in this snapshot
+     */
+    public boolean isSuccessor(String ip, int port) {
+        return ip.equals(this.ipSuccessor) && port == this.portSuccessor;
+    }
+
+    /**
+     * Checks whether a peer is the predecessor
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return true if the peer is the predecessor in this snapshot
+     */
+    public boolean isPredecessor(String ip, int port) {
+        return ip.equals(this.ipPredecessor) && port == this.portPredecessor;
+    }
+
+    /**
+     * Checks whether a peer is the successor or the predecessor
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return true if the peer is a neighbour in this snapshot
+     */
+    public boolean contains(String ip, int port) {
+        return isSuccessor(ip, port) || isPredecessor(ip, port);
+    }
+
+    /**
+     * Compares two lists of fingers by address
+     * @param a the first list
+     * @param b the second list
+     * @return true if both lists point at the same clients in the same order
+     */
+    static boolean sameFingers(List<FingerTable.Finger> a, List<FingerTable.Finger> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).ip.equals(b.get(i).ip) || a.get(i).port != b.get(i).port) return false;
+        }
+        return true;
+    }
+}
\ No newline at end of file
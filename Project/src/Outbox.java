@@ -0,0 +1,159 @@
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class numbers the PUTs a client sends, one sequence per receiver, and keeps each one until the receiver
+ * acknowledges it. A PUT that goes unacknowledged for RETRANSMIT_MS is sent again, up to MAX_ATTEMPTS times in all,
+ * so a message lost on the way, e.g. with a neighbour that failed, still arrives. The receiver drops the copies it
+ * already has and puts the rest back in order, see Inbox.
+ */
+public class Outbox {
+    // How long a PUT may go unacknowledged before it is sent again
+    static final long RETRANSMIT_MS = 1000;
+
+    // How many times a PUT is sent before the sender gives up on it
+    static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * This class represents a PUT that wasn't acknowledged yet
+     */
+    static class Pending {
+        JsonObject putJson;
+        long sentAt;
+        int attempts;
+
+        /**
+         * Constructor for the Pending class
+         * @param putJson the numbered message
+         * @param sentAt when it was first sent, from System.currentTimeMillis
+         */
+        Pending(JsonObject putJson, long sentAt) {
+            this.putJson = putJson;
+            this.sentAt = sentAt;
+            this.attempts = 1;
+        }
+    }
+
+    // Tells the PUTs of this run of the client from those of an earlier run under the same alias
+    long session;
+
+    // Sequence number of the last PUT numbered for each receiver
+    Map<String, Long> sequences;
+
+    // Unacknowledged PUTs to each receiver, by sequence number
+    Map<String, ConcurrentSkipListMap<Long, Pending>> pending;
+
+    /**
+     * Constructor for the Outbox class
+     */
+    public Outbox() {
+        this.session = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        this.sequences = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Numbers a PUT and keeps it until it is acknowledged. Besides its own number, the PUT carries the lowest number
+     * still unacknowledged, so the receiver knows it won't see any lower one again.
+     * @param putJson the message to send
+     * @param now the time it is sent, from System.currentTimeMillis
+     * @return the numbered message
+     */
+    public JsonObject number(JsonObject putJson, long now) {
+        String aliasReceiver = putJson.getJsonObject("parameters").getString("aliasReceiver");
+        ConcurrentSkipListMap<Long, Pending> unacknowledged = this.pending.computeIfAbsent(aliasReceiver, alias -> new ConcurrentSkipListMap<>());
+
+        // A PUT must be pending before the next one is numbered, or that one could claim it was acknowledged
+        synchronized (unacknowledged) {
+            long seq = this.sequences.merge(aliasReceiver, 1L, Long::sum);
+            long first = unacknowledged.isEmpty() ? seq : unacknowledged.firstKey();
+            putJson = Chat.withParameter(putJson, "session", this.session);
+            putJson = Chat.withParameter(putJson, "seq", seq);
+            putJson = Chat.withParameter(putJson, "first", first);
+            unacknowledged.put(seq, new Pending(putJson, now));
+            return putJson;
+        }
+    }
+
+    /**
+     * Stops sending PUTs the receiver acknowledged
+     * @param aliasReceiver the alias of the receiver
+     * @param session the session the acknowledged PUTs were sent in
+     * @param seq the number of the PUT that was acknowledged
+     * @param upTo the number up to which the receiver has every PUT, or 0
+     */
+    public void acknowledged(String aliasReceiver, long session, long seq, long upTo) {
+        ConcurrentSkipListMap<Long, Pending> unacknowledged = this.pending.get(aliasReceiver);
+        if (session != this.session || unacknowledged == null) return;
+
+        unacknowledged.remove(seq);
+        unacknowledged.headMap(upTo, true).clear();
+    }
+
+    /**
+     * Stops sending a PUT that won't be acknowledged, because it came back or is kept for a receiver that isn't in the ring
+     * @param putJson the message
+     */
+    public void forget(JsonObject putJson) {
+        JsonObject parameters = putJson.getJsonObject("parameters");
+        if (!parameters.containsKey("seq")) return;
+        acknowledged(parameters.getString("aliasReceiver"), parameters.getJsonNumber("session").longValue(),
+            parameters.getJsonNumber("seq").longValue(), 0);
+    }
+
+    /**
+     * Collects the PUTs to send again and gives up on those that were sent MAX_ATTEMPTS times
+     * @param now the current time, from System.currentTimeMillis
+     * @return the messages to send again, oldest first for each receiver
+     */
+    public List<JsonObject> due(long now) {
+        List<JsonObject> due = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentSkipListMap<Long, Pending>> entry : this.pending.entrySet()) {
+            Iterator<Pending> iterator = entry.getValue().values().iterator();
+            while (iterator.hasNext()) {
+                Pending pending = iterator.next();
+                if (now - pending.sentAt < RETRANSMIT_MS) continue;
+
+                if (pending.attempts >= MAX_ATTEMPTS) {
+                    iterator.remove();
+                    System.out.printf("Your message to %s was never acknowledged, gave up after %d attempts%n", entry.getKey(), pending.attempts);
+                    continue;
+                }
+                pending.attempts++;
+                pending.sentAt = now;
+                due.add(pending.putJson);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Pending accessor
+     * @return the number of PUTs waiting for an acknowledgement
+     */
+    public int size() {
+        int size = 0;
+        for (ConcurrentSkipListMap<Long, Pending> unacknowledged : this.pending.values()) {
+            size += unacknowledged.size();
+        }
+        return size;
+    }
+
+    /**
+     * Marks a PUT as kept for a receiver that isn't in the ring. Kept PUTs are delivered outside of the sequence
+     * when the receiver joins, since the sender stopped waiting for them and moved on.
+     * @param putJson the message
+     * @return the marked message
+     */
+    static JsonObject kept(JsonObject putJson) {
+        if (!putJson.getJsonObject("parameters").containsKey("seq")) return putJson;
+        return Chat.withParameter(putJson, "kept", JsonValue.TRUE);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,466 @@
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class represents a long-lived connection to another peer.
+ * Messages are written as length-prefixed frames so that many of them can share one socket
+ * instead of paying a TCP handshake and teardown for every message.
+ */
+public class PeerConnection {
+    /*----- Framing -----*/
+
+    // First 4 bytes of a framed connection ("DCHT"). Legacy connections start with the ObjectOutputStream header 0xACED.
+    static final int MAGIC = 0x44434854;
+
+    // Framing versions. Version 1 frames carry JSON text, version 2 frames may also carry BinaryCodec messages,
+    // and version 3 frames may also be batches of several messages.
+    static final int JSON_VERSION = 1;
+    static final int BINARY_VERSION = 2;
+    static final int BATCH_VERSION = 3;
+
+    // First byte of a batch frame, which is followed by length-prefixed messages until the end of the frame
+    static final byte BATCH = 0x02;
+
+    // Largest frame a peer will accept
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // How long to wait for the connection to be accepted, and for the handshake reply, before giving up on a peer
+    static final int CONNECT_TIMEOUT_MS = 5000;
+    static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    /*----- Batching -----*/
+
+    // A batch is written as soon as it holds this many messages or bytes...
+    static final int MAX_BATCH_COUNT = 64;
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    // ...or once its first message has waited this long
+    static final long LINGER_MS = 2;
+
+    // Times the batches whose linger time runs out, and hands their writes to FLUSH
+    static final ScheduledExecutorService LINGER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Writes the batches whose linger time ran out. A connection stuck on a slow peer ties up only its own flush,
+    // and as a connection has at most one flush scheduled, there are never more threads than connections.
+    static final ExecutorService FLUSH = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    String ip;
+    int port;
+    Socket socket;
+    DataOutputStream out;
+
+    // The stream under out, which counts the bytes that reached the socket
+    CountingOutputStream sent;
+
+    // Highest framing version this side offers, and the one the peer agreed to
+    int maxVersion;
+    int version;
+
+    // Whether to send BinaryCodec messages when the peer speaks them
+    boolean binary;
+
+    // Encoded messages waiting to be written as one batch, and their total size
+    List<byte[]> pending;
+    int pendingBytes;
+
+    // Set while a linger flush is scheduled
+    boolean lingering;
+
+    // Where written bytes and failed connects are counted, null when metrics are off
+    Metrics metrics;
+
+    // Set once the connection is no longer pooled. A send racing with retirement still goes out, then closes.
+    boolean retired;
+
+    // Sets up TLS sessions with the peer, null when the connection is plaintext
+    TlsContext tls;
+
+    /**
+     * Constructor for the PeerConnection class. The socket is opened lazily on the first send.
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @param maxVersion the highest framing version to offer the peer
+     * @param binary true to send BinaryCodec messages if the peer speaks them
+     */
+    public PeerConnection(String ip, int port, int maxVersion, boolean binary) {
+        this.ip = ip;
+        this.port = port;
+        this.maxVersion = maxVersion;
+        this.binary = binary;
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Opens a socket to a peer with Nagle's algorithm off, giving up on a peer that doesn't accept within CONNECT_TIMEOUT_MS
+     * @param tls the TLS setup of the client, or null to connect in plaintext
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return the connected socket, after the TLS handshake if the connection is encrypted
+     * @throws IOException if the peer can't be reached
+     */
+    static Socket open(TlsContext tls, String ip, int port) throws IOException {
+        if (tls != null) return tls.connect(ip, port);
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+        } catch(IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Opens the socket and performs the handshake, after the TLS handshake if the connection is encrypted.
+     * The peer answers with the highest framing version it speaks, so peers that only know JSON frames keep getting JSON.
+     * @throws IOException if the peer can't be reached or doesn't speak the framed protocol
+     */
+    void connect() throws IOException {
+        try {
+            this.socket = open(this.tls, this.ip, this.port);
+        } catch (IOException e) {
+            if (this.metrics != null) this.metrics.connectFailed();
+            throw e;
+        }
+        this.sent = new CountingOutputStream(this.socket.getOutputStream());
+        this.out = new DataOutputStream(new BufferedOutputStream(this.sent));
+
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(this.maxVersion);
+        this.out.flush();
+
+        this.socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        int accepted = this.socket.getInputStream().read();
+        this.socket.setSoTimeout(0);
+        if (accepted < JSON_VERSION || accepted > this.maxVersion) {
+            close();
+            throw new IOException(String.format("Peer %s:%d refused framed connection", this.ip, this.port));
+        }
+        this.version = accepted;
+    }
+
+    /**
+     * Sends a message to the peer in the best format it speaks
+     * @param jsonMessage the message to send
+     * @throws IOException if the frame can't be written
+     */
+    public void send(JsonObject jsonMessage) throws IOException {
+        send(jsonMessage, null);
+    }
+
+    /**
+     * Forwards a binary message untouched, or converted back to JSON if the peer doesn't speak the binary codec
+     * @param binaryMessage the message as received
+     * @throws IOException if the frame can't be written
+     */
+    public void forward(byte[] binaryMessage) throws IOException {
+        send(null, binaryMessage);
+    }
+
+    /**
+     * Writes a message to the peer right away, connecting first if needed.
+     * Messages still waiting in the batch are written in the same go, ahead of this one.
+     * @param jsonMessage the message to send, or null if binaryMessage is given
+     * @param binaryMessage the message already in binary form, or null if jsonMessage is given
+     * @throws IOException if the message can't be written
+     */
+    void send(JsonObject jsonMessage, byte[] binaryMessage) throws IOException {
+        send(jsonMessage, binaryMessage, false);
+    }
+
+    /**
+     * Writes a message to the peer right away, connecting first if needed, along with the messages waiting in the batch
+     * @param jsonMessage the message to send, or null if binaryMessage is given
+     * @param binaryMessage the message already in binary form, or null if jsonMessage is given
+     * @param first true to write the message at the head of the batch, for control messages that shouldn't wait for PUTs
+     * @throws IOException if the message can't be written
+     */
+    synchronized void send(JsonObject jsonMessage, byte[] binaryMessage, boolean first) throws IOException {
+        boolean fresh = this.socket == null;
+        if (fresh) connect();
+
+        byte[] payload = encode(jsonMessage, binaryMessage);
+        if (first) {
+            this.pending.add(0, payload);
+            this.pendingBytes += payload.length;
+        } else {
+            queue(payload);
+        }
+        writePending(fresh);
+    }
+
+    /**
+     * Adds a message to the batch, which is written once it is full or its first message waited LINGER_MS.
+     * Under bursty traffic this coalesces many messages into one frame and one socket write.
+     * @param jsonMessage the message to send, or null if binaryMessage is given
+     * @param binaryMessage the message already in binary form, or null if jsonMessage is given
+     * @throws IOException if the peer can't be reached, or a full batch can't be written
+     */
+    public synchronized void enqueue(JsonObject jsonMessage, byte[] binaryMessage) throws IOException {
+        boolean fresh = this.socket == null;
+        if (fresh) connect();
+
+        queue(encode(jsonMessage, binaryMessage));
+        if (this.pending.size() >= MAX_BATCH_COUNT || this.pendingBytes >= MAX_BATCH_BYTES) {
+            writePending(fresh);
+        } else if (!this.lingering) {
+            this.lingering = true;
+            LINGER.schedule(() -> FLUSH.execute(this::linger), LINGER_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the batch right away instead of waiting for the linger time
+     */
+    public synchronized void flush() {
+        if (this.pending.isEmpty()) return;
+        try {
+            writePending(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the batch once the linger time of its first message ran out
+     */
+    synchronized void linger() {
+        this.lingering = false;
+        flush();
+    }
+
+    /**
+     * Adds an encoded message to the batch
+     * @param payload the bytes of the message
+     */
+    void queue(byte[] payload) {
+        this.pending.add(payload);
+        this.pendingBytes += payload.length;
+    }
+
+    /**
+     * Writes every message of the batch and empties it.
+     * If the existing socket turns out to be dead before any of the batch reached it, it is re-established once
+     * and the batch is written again. Once part of the batch went out the peer may have some of its messages,
+     * so the batch is given up rather than sent twice.
+     * @param fresh true if the socket was opened for this batch, so a failure isn't worth a retry
+     * @throws IOException if the batch can't be written
+     */
+    void writePending(boolean fresh) throws IOException {
+        List<byte[]> batch = this.pending;
+        this.pending = new ArrayList<>();
+        this.pendingBytes = 0;
+
+        CountingOutputStream sent = this.sent;
+        long before = sent.count;
+        try {
+            writeBatch(batch);
+        } catch (IOException e) {
+            close();
+            if (fresh || sent.count != before) throw e;
+
+            // The peer may have dropped an idle connection, so try once more on a new one
+            connect();
+            for (int i = 0; i < batch.size(); i++) {
+                batch.set(i, reencode(batch.get(i)));
+            }
+            writeBatch(batch);
+        }
+
+        if (this.retired) close();
+    }
+
+    /**
+     * Picks the payload for the negotiated version, converting between the formats only when needed
+     * @param jsonMessage the message as JSON, or null
+     * @param binaryMessage the message in binary form, or null
+     * @return the payload of the frame
+     */
+    byte[] encode(JsonObject jsonMessage, byte[] binaryMessage) {
+        if (this.binary && this.version >= BINARY_VERSION) {
+            return binaryMessage != null ? binaryMessage : BinaryCodec.encode(jsonMessage);
+        }
+        return toBytes(jsonMessage != null ? jsonMessage : BinaryCodec.decode(binaryMessage));
+    }
+
+    /**
+     * Encodes a payload again after a reconnect, in case the peer now speaks a different version
+     * @param payload the bytes of the message as encoded for the previous connection
+     * @return the payload of the frame
+     */
+    byte[] reencode(byte[] payload) {
+        return BinaryCodec.isBinary(payload) ? encode(null, payload) : encode(fromBytes(payload), null);
+    }
+
+    /**
+     * Writes a batch of messages and flushes them onto the socket.
+     * Several messages share one batch frame if the peer speaks batches, otherwise each gets its own frame.
+     * @param batch the payloads of the messages
+     * @throws IOException if the socket write fails
+     */
+    void writeBatch(List<byte[]> batch) throws IOException {
+        if (batch.size() > 1 && this.version >= BATCH_VERSION) {
+            int length = 1;
+            for (byte[] payload : batch) {
+                length += 4 + payload.length;
+            }
+            if (this.metrics != null) this.metrics.sentBytes(4 + length);
+            this.out.writeInt(length);
+            this.out.writeByte(BATCH);
+            for (byte[] payload : batch) {
+                writeFrame(payload);
+            }
+        } else {
+            for (byte[] payload : batch) {
+                if (this.metrics != null) this.metrics.sentBytes(4 + payload.length);
+                writeFrame(payload);
+            }
+        }
+        this.out.flush();
+    }
+
+    /**
+     * Writes the length prefix and payload of one message
+     * @param payload the bytes of the message
+     * @throws IOException if the socket write fails
+     */
+    void writeFrame(byte[] payload) throws IOException {
+        this.out.writeInt(payload.length);
+        this.out.write(payload);
+    }
+
+    /**
+     * This class is an output stream that counts the bytes written through it
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        /**
+         * Constructor for the CountingOutputStream class
+         * @param out the stream to write to
+         */
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+    /**
+     * Closes the socket. The next send will reconnect.
+     */
+    public synchronized void close() {
+        if (this.socket != null) {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        this.socket = null;
+        this.out = null;
+    }
+
+    /**
+     * Writes what is left in the batch, then closes the socket and marks the connection as no longer pooled
+     */
+    public synchronized void retire() {
+        this.retired = true;
+        flush();
+        close();
+    }
+
+    /**
+     * Serializes a JSON message into a frame payload
+     * @param jsonMessage the message to serialize
+     * @return the UTF-8 bytes of the JSON text
+     */
+    public static byte[] toBytes(JsonObject jsonMessage) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter jsonWriter = Json.createWriter(bytes);
+        jsonWriter.write(jsonMessage);
+        jsonWriter.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks whether a frame payload is a batch of messages
+     * @param payload the bytes of the frame
+     * @return true if the payload starts with the BATCH byte
+     */
+    public static boolean isBatch(byte[] payload) {
+        return payload.length > 0 && payload[0] == BATCH;
+    }
+
+    /**
+     * Splits a batch frame into the payloads of its messages
+     * @param batch the bytes of the batch frame
+     * @return the payloads, in the order they were sent
+     * @throws IOException if a length runs past the end of the frame
+     */
+    public static List<byte[]> unpackBatch(byte[] batch) throws IOException {
+        List<byte[]> payloads = new ArrayList<>();
+        int position = 1;
+        while (position < batch.length) {
+            if (batch.length - position < 4) {
+                throw new IOException("Truncated batch frame");
+            }
+            int length = ((batch[position] & 0xFF) << 24) | ((batch[position + 1] & 0xFF) << 16)
+                | ((batch[position + 2] & 0xFF) << 8) | (batch[position + 3] & 0xFF);
+            position += 4;
+            if (length < 0 || length > batch.length - position) {
+                throw new IOException("Invalid message length " + length + " in batch frame");
+            }
+            byte[] payload = new byte[length];
+            System.arraycopy(batch, position, payload, 0, length);
+            payloads.add(payload);
+            position += length;
+        }
+        return payloads;
+    }
+
+    /**
+     * Parses a frame payload back into a JSON message
+     * @param payload the UTF-8 bytes of the JSON text
+     * @return the parsed message
+     */
+    public static JsonObject fromBytes(byte[] payload) {
+        return Json.createReader(new ByteArrayInputStream(payload)).readObject();
+    }
+}
\ No newline at end of file
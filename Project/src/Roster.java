@@ -0,0 +1,259 @@
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is a client's view of who is in the chat room. Every client keeps one, and they converge by gossip:
+ * the changes a client hasn't told a peer about yet ride along on the messages it sends that peer anyway.
+ * Each member has an incarnation, which only the member itself raises, when it joins. A newer incarnation wins,
+ * and of two entries with the same incarnation, the one saying the member left wins. A member that is said
+ * to have left while it is still there raises its incarnation to set the record straight.
+ * Entries are immutable and looked up without locking, so asking whether someone is in the room costs a map lookup.
+ */
+public class Roster {
+    // How long a member that left is remembered, so the news spreads instead of the member coming back from stale views
+    static final long TOMBSTONE_TTL_MS = 60000;
+
+    // How often a peer is sent every entry rather than only the changes, to make up for gossip that got lost
+    static final long FULL_SYNC_MS = 5000;
+
+    /**
+     * This class represents what is known about one member
+     */
+    static class Member {
+        final String alias;
+        final String ip;
+        final int port;
+        final long incarnation;
+        final boolean left;
+
+        // Version of the roster when this entry changed here, and when that was
+        final long version;
+        final long changedAt;
+
+        /**
+         * Constructor for the Member class
+         * @param alias the name of the member
+         * @param ip the IP address of the member
+         * @param port the port of the member
+         * @param incarnation the incarnation of the member
+         * @param left whether the member left
+         * @param version the version of the roster when this entry changed
+         */
+        Member(String alias, String ip, int port, long incarnation, boolean left, long version) {
+            this.alias = alias;
+            this.ip = ip;
+            this.port = port;
+            this.incarnation = incarnation;
+            this.left = left;
+            this.version = version;
+            this.changedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Checks whether this entry replaces another
+         * @param other the entry known so far, or null
+         * @return true if this entry is newer
+         */
+        boolean supersedes(Member other) {
+            if (other == null || this.incarnation > other.incarnation) return true;
+            return this.incarnation == other.incarnation && this.left && !other.left;
+        }
+    }
+
+    // Alias of the client keeping this roster, the only member whose entry it changes on its own
+    String alias;
+
+    // Members keyed by alias, those that left included for a while
+    Map<String, Member> members;
+
+    // Bumped whenever an entry changes here
+    long version;
+
+    // Version of the roster last sent to each peer, and when it was last sent every entry, keyed by "ip:port"
+    Map<String, Long> sent;
+    Map<String, Long> synced;
+
+    /**
+     * Constructor for the Roster class. A client starts out alone in its own room.
+     * @param alias the name of the client
+     * @param ip the IP address of the client
+     * @param port the port of the client
+     */
+    public Roster(String alias, String ip, int port) {
+        this.alias = alias;
+        this.members = new ConcurrentHashMap<>();
+        this.sent = new HashMap<>();
+        this.synced = new HashMap<>();
+        this.members.put(alias, new Member(alias, ip, port, System.currentTimeMillis(), false, ++this.version));
+    }
+
+    /**
+     * Member accessor
+     * @param alias the name of the member
+     * @return the entry of the member if it is in the room, otherwise null
+     */
+    public Member get(String alias) {
+        Member member = this.members.get(alias);
+        return member == null || member.left ? null : member;
+    }
+
+    /**
+     * Presence accessor
+     * @param alias the name of a client
+     * @return true if the client is in the room as far as this client knows
+     */
+    public boolean isPresent(String alias) {
+        return get(alias) != null;
+    }
+
+    /**
+     * Members accessor
+     * @return the members in the room, by alias
+     */
+    public List<Member> present() {
+        List<Member> present = new ArrayList<>();
+        for (Member member : this.members.values()) {
+            if (!member.left) present.add(member);
+        }
+        present.sort(Comparator.comparing(member -> member.alias));
+        return present;
+    }
+
+    /**
+     * Starts a new incarnation of this client, when it joins a ring or is known by a new address
+     * @param ip the IP address of the client
+     * @param port the port of the client
+     * @return the new incarnation
+     */
+    public synchronized long join(String ip, int port) {
+        Member self = this.members.get(this.alias);
+        long incarnation = Math.max(System.currentTimeMillis(), self.incarnation + 1);
+        this.members.put(this.alias, new Member(this.alias, ip, port, incarnation, false, ++this.version));
+        return incarnation;
+    }
+
+    /**
+     * Marks this client as leaving and forgets everyone else, since it won't hear about them anymore
+     * @return this client's entry, to tell the neighbours it leaves
+     */
+    public synchronized JsonArray leave() {
+        Member self = this.members.get(this.alias);
+        Member left = new Member(this.alias, self.ip, self.port, self.incarnation, true, ++this.version);
+        this.members.clear();
+        this.members.put(this.alias, left);
+        this.sent.clear();
+        this.synced.clear();
+        return Json.createArrayBuilder().add(toJson(left)).build();
+    }
+
+    /**
+     * Adds a client whose JOIN was accepted here
+     * @param alias the name of the client
+     * @param ip the IP address of the client
+     * @param port the port of the client
+     * @param incarnation the incarnation the client joined with
+     */
+    public synchronized void add(String alias, String ip, int port, long incarnation) {
+        Member member = new Member(alias, ip, port, incarnation, false, this.version + 1);
+        if (member.supersedes(this.members.get(alias))) {
+            this.members.put(alias, member);
+            this.version++;
+        }
+    }
+
+    /**
+     * Marks the member at an address as gone, when it stopped answering
+     * @param ip the IP address of the member
+     * @param port the port of the member
+     */
+    public synchronized void fail(String ip, int port) {
+        for (Member member : this.members.values()) {
+            if (!member.left && member.port == port && member.ip.equals(ip) && !member.alias.equals(this.alias)) {
+                this.members.put(member.alias, new Member(member.alias, member.ip, member.port, member.incarnation, true, ++this.version));
+                System.out.printf("%s is no longer in the chat room%n", member.alias);
+            }
+        }
+    }
+
+    /**
+     * Takes in the entries a peer gossiped
+     * @param gossip the entries, as sent by toJson
+     */
+    public synchronized void merge(JsonArray gossip) {
+        for (JsonValue value : gossip) {
+            JsonObject entry = (JsonObject) value;
+            String alias = entry.getString("alias");
+            long incarnation = entry.getJsonNumber("incarnation").longValue();
+            boolean left = entry.getBoolean("left");
+            Member current = this.members.get(alias);
+
+            if (alias.equals(this.alias)) {
+                // Nobody else decides about this client, but a rumour that it left has to be outdone
+                if (left && !current.left && incarnation >= current.incarnation) {
+                    this.members.put(alias, new Member(alias, current.ip, current.port, incarnation + 1, false, ++this.version));
+                }
+                continue;
+            }
+
+            Member member = new Member(alias, entry.getString("ip"), entry.getInt("port"), incarnation, left, this.version + 1);
+            if (member.supersedes(current)) {
+                this.members.put(alias, member);
+                this.version++;
+            }
+        }
+    }
+
+    /**
+     * Collects the entries a peer hasn't been sent yet, and counts them as sent. A new peer, and every peer
+     * once per FULL_SYNC_MS, is sent every entry. Members that left long ago are forgotten here.
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return the entries, possibly none
+     */
+    public synchronized JsonArray delta(String ip, int port) {
+        String peer = ip + ":" + port;
+        long now = System.currentTimeMillis();
+        long since = this.sent.getOrDefault(peer, 0L);
+        if (now - this.synced.getOrDefault(peer, 0L) >= FULL_SYNC_MS) {
+            since = 0;
+            this.synced.put(peer, now);
+        }
+        JsonArrayBuilder delta = Json.createArrayBuilder();
+        Iterator<Member> iterator = this.members.values().iterator();
+        while (iterator.hasNext()) {
+            Member member = iterator.next();
+            if (member.left && now - member.changedAt > TOMBSTONE_TTL_MS && !member.alias.equals(this.alias)) {
+                iterator.remove();
+            } else if (member.version > since) {
+                delta.add(toJson(member));
+            }
+        }
+        this.sent.put(peer, this.version);
+        return delta.build();
+    }
+
+    /**
+     * Converts an entry to JSON
+     * @param member the entry
+     * @return Json object containing the member's alias, address, incarnation and whether it left
+     */
+    static JsonObject toJson(Member member) {
+        return Json.createObjectBuilder()
+            .add("alias", member.alias)
+            .add("ip", member.ip)
+            .add("port", member.port)
+            .add("incarnation", member.incarnation)
+            .add("left", member.left)
+            .build();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,57 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * This class runs tasks one at a time, in submission order, on top of a shared executor.
+ * It lets many connections share a worker pool while the messages of each connection are still handled in order.
+ */
+public class SerialExecutor implements Executor {
+    Executor executor;
+    Queue<Runnable> tasks;
+    Runnable active;
+
+    /**
+     * Constructor for the SerialExecutor class
+     * @param executor the executor that actually runs the tasks
+     */
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+        this.tasks = new ArrayDeque<>();
+    }
+
+    /**
+     * Queues a task behind the ones already submitted to this executor
+     * @param task the task to run
+     */
+    public synchronized void execute(Runnable task) {
+        this.tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (this.active == null) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Checks whether tasks are waiting behind the one currently running
+     * @return true if at least one task is queued
+     */
+    public synchronized boolean hasQueued() {
+        return !this.tasks.isEmpty();
+    }
+
+    /**
+     * Hands the next queued task to the underlying executor
+     */
+    synchronized void scheduleNext() {
+        this.active = this.tasks.poll();
+        if (this.active != null) {
+            this.executor.execute(this.active);
+        }
+    }
+}
\ No newline at end of file
@@ -1,75 +1,621 @@
 import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.net.ssl.SSLEngine;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class represents the server who receives messages from the client via sockets.
- * It uses semaphores when accessing data shared by the client running in this process.
+ * A single selector thread does all the non-blocking reads and hands complete messages to a pool of workers,
+ * so a slow neighbour never stalls the other connections. Where a message is handled depends on its type, see HandlerRegistry.
+ * Changes to the neighbours go through the membership state machine shared with the client running in this process.
  */
 public class Server implements Runnable {
+    // How often one finger of the finger table is refreshed
+    static final long FIX_FINGERS_INTERVAL_MS = 500;
+
+    // How often the successor is sent a heartbeat, and how long a neighbour may stay silent before it counts as failed
+    static final long HEARTBEAT_INTERVAL_MS = 200;
+    static final long FAILURE_TIMEOUT_MS = 700;
+
+    // How often unacknowledged PUTs and PUTs held back for a gap are looked at
+    static final long RETRANSMIT_INTERVAL_MS = 250;
+
+    // How long numbered PUTs that arrived may wait to be acknowledged together
+    static final long ACK_INTERVAL_MS = 200;
+
+    // How often files being received are checked for having stalled
+    static final long DOWNLOAD_CHECK_INTERVAL_MS = 5000;
+
+    // How often the selector looks for connections that didn't finish their handshake in time
+    static final long HANDSHAKE_CHECK_INTERVAL_MS = 1000;
+
+    // Threads handling control messages when there is no dispatcher
+    static final int CONTROL_THREADS = 2;
+
+    // Threads checking the certificates of peers during TLS handshakes
+    static final int HANDSHAKE_THREADS = 2;
+
     Chat chat;
 
+    // Worker stage that runs the message handlers
+    Executor workers;
+
+    // Runs the handlers of control messages, apart from the PUTs being relayed
+    Executor controlWorkers;
+
+    // Runs the slow steps of TLS handshakes, null without TLS. The handlers may wait for a handshake with a peer
+    // that waits for its own handlers, so the steps can't queue behind them.
+    Executor handshakes;
+
+    // Handler and where it runs for each message type
+    HandlerRegistry handlers;
+
+    // Alias of the local client as UTF-8, compared against binary PUTs without decoding them
+    byte[] aliasBytes;
+
+    // Index of the finger to refresh next
+    int nextFinger;
+
+    // When each neighbour was last heard from, keyed by "ip:port"
+    Map<String, Long> lastHeard;
+
+    // Connections the selector thread goes back to once their TLS handshake can go on
+    Queue<SelectionKey> resumed;
+
     /**
      * Constructor for the Server class
      * @param chat the Chat object
      */
     public Server(Chat chat) {
         this.chat = chat;
+        this.aliasBytes = chat.getAlias().getBytes(StandardCharsets.UTF_8);
+        this.workers = chat.dispatcher != null
+            ? chat.dispatcher
+            : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.controlWorkers = chat.controlDispatcher != null
+            ? chat.controlDispatcher
+            : Executors.newFixedThreadPool(CONTROL_THREADS);
+        this.handshakes = chat.tls != null ? Executors.newFixedThreadPool(HANDSHAKE_THREADS) : null;
+        this.lastHeard = new ConcurrentHashMap<>();
+        this.resumed = new ConcurrentLinkedQueue<>();
+        this.handlers = new HandlerRegistry();
+        registerHandlers();
+    }
+
+    /**
+     * Registers the handlers of the message types. FOUND only updates a table, so it runs on the selector thread.
+     * The other control messages take the membership lock, send, or swap the neighbours, which may retire
+     * a pooled connection and write to it, so they get a pool of their own.
+     * PUTs, CHUNKs and MULTICASTs are the bulk of the traffic and go to the workers.
+     */
+    void registerHandlers() {
+        this.handlers.register("JOIN", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> membership(observe(jsonMessage, from)));
+        this.handlers.register("ACCEPT", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> membership(jsonMessage));
+        this.handlers.register("NEWSUCCESSOR", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> membership(stamp(jsonMessage, from)));
+        this.handlers.register("LEAVE", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> membership(stamp(jsonMessage, from)));
+        this.handlers.register("FIND", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> find(jsonMessage));
+        this.handlers.register("FOUND", HandlerRegistry.Mode.INLINE, (jsonMessage, from) -> found(jsonMessage));
+        this.handlers.register("DELIVERED", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> delivered(jsonMessage));
+        this.handlers.register("ACK", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> ack(jsonMessage));
+        this.handlers.register("ARRIVED", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> arrived(jsonMessage));
+        this.handlers.register("PING", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> ping(jsonMessage));
+        this.handlers.register("PONG", HandlerRegistry.Mode.CONTROL, (jsonMessage, from) -> pong(jsonMessage));
+        this.handlers.register("PUT", HandlerRegistry.Mode.BULK, (jsonMessage, from) -> put(jsonMessage),
+            (binaryMessage, from) -> put(binaryMessage));
+        this.handlers.register("CHUNK", HandlerRegistry.Mode.BULK, (jsonMessage, from) -> chunk(jsonMessage),
+            (binaryMessage, from) -> {
+                if (!forward(binaryMessage)) chunk(BinaryCodec.decode(binaryMessage));
+            });
+        this.handlers.register("MULTICAST", HandlerRegistry.Mode.BULK, (jsonMessage, from) -> multicast(jsonMessage));
+    }
+
+    /**
+     * Applies a JOIN, ACCEPT, NEWSUCCESSOR or LEAVE under the membership lock, or parks it if it can't apply yet.
+     * Every change is followed by another try of the parked messages, since it may be the one they waited for.
+     * The messages the changes call for are sent once the lock is released.
+     * @param jsonMessage the message received from another client
+     */
+    public void membership(JsonObject jsonMessage) {
+        Membership membership = this.chat.membership;
+        synchronized (membership) {
+            if (apply(jsonMessage)) {
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (Membership.Parked parked : membership.unpark()) {
+                        if (apply(parked.message)) {
+                            changed = true;
+                        } else {
+                            membership.repark(parked);
+                        }
+                    }
+                }
+            } else {
+                membership.park(jsonMessage);
+            }
+        }
+        membership.runDeferred();
+    }
+
+    /**
+     * Applies one membership message. Called under the membership lock, so the messages it sends go through sendLater.
+     * @param jsonMessage the message
+     * @return false if the message has to wait for another change first
+     */
+    boolean apply(JsonObject jsonMessage) {
+        switch(jsonMessage.getString("type")) {
+            case "JOIN":
+                return join(jsonMessage);
+            case "ACCEPT":
+                return accept(jsonMessage);
+            case "NEWSUCCESSOR":
+                return newSuccessor(jsonMessage);
+            case "LEAVE":
+                return leave(jsonMessage);
+            default: return true;
+        }
+    }
+
+    /**
+     * Sends a message once the membership lock is released, since sending blocks until the peer takes the message
+     * @param jsonMessage the message
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     */
+    void sendLater(JsonObject jsonMessage, String ip, int port) {
+        this.chat.membership.defer(() -> this.chat.sendJson(jsonMessage, ip, port));
     }
 
     /**
      * Performs the necessary actions for a server-side JOIN message in the Flooding protocol.
+     * A client that is leaving passes the JOIN on to its successor, which only accepts it once it has dropped
+     * the leaving client as its predecessor.
      * @param joinJson the message to send over the socket
+     * @return false if the JOIN has to wait
      */
-    public void join(JsonObject joinJson) {
+    public boolean join(JsonObject joinJson) {
         // Get necessary info from json message
         String clientAlias = joinJson.getJsonObject("parameters").getString("myAlias");
+        String clientIp = joinJson.getJsonObject("parameters").getString("myIp", Chat.DEFAULT_HOST);
         Integer clientPort = joinJson.getJsonObject("parameters").getInt("myPort");
 
+        switch(this.chat.membership.getState()) {
+            case JOINING:
+                return false;
+            case LEAVING:
+                redirect(joinJson);
+                return true;
+            default:
+        }
+
+        Neighbours neighbours = this.chat.getNeighbours();
+        if (avoids(joinJson, neighbours.ipPredecessor, neighbours.portPredecessor)) return false;
+
+        if (this.chat.routesByHash()) {
+            joinWithFingers(joinJson, clientAlias, clientIp, clientPort);
+            return true;
+        }
+
         System.out.printf("%s wants to join! Let's add them to our chat!%n", clientAlias);
 
         // Send accept message to client who tried to join
-        JsonObject acceptJson = this.chat.createMessage_ACCEPT(this.chat.getIpPredecessor(), this.chat.getPortPredecessor());
-        this.chat.sendJson(acceptJson, "localhost", clientPort);
+        JsonObject acceptJson = this.chat.createMessage_ACCEPT(neighbours.ipPredecessor, neighbours.portPredecessor, clientIp);
+        sendLater(welcome(acceptJson, joinJson, clientAlias, clientIp, clientPort), clientIp, clientPort);
+
+        // Send new successor message to previous predecessor
+        JsonObject successorJson = Chat.withParameter(this.chat.createMessage_NEWSUCCESSOR(clientIp, clientPort), "joined", JsonValue.TRUE);
+        sendLater(successorJson, neighbours.ipPredecessor, neighbours.portPredecessor);
+
+        // Update member variables for local client
+        this.chat.updatePredecessor(clientIp, clientPort);
+        this.chat.membership.defer(() -> announce(clientAlias, clientIp, clientPort));
+        return true;
+    }
+
+    /**
+     * Settles the address of a client that sent its JOIN straight here. The address the client advertises is kept,
+     * unless it only means something on the client's own machine while the JOIN came from another one,
+     * in which case the address the connection came from is used instead. JOINs that were passed on
+     * were settled by the first client they reached.
+     * @param joinJson the message
+     * @param from the address the connection came from, or null if it isn't known
+     * @return the message with the address settled
+     */
+    static JsonObject observe(JsonObject joinJson, InetAddress from) {
+        JsonObject parameters = joinJson.getJsonObject("parameters");
+        if (from == null || parameters.getBoolean("observed", false)) return joinJson;
+
+        String advertised = parameters.getString("myIp", Chat.DEFAULT_HOST);
+        if (isLocal(advertised) && !from.isLoopbackAddress()) {
+            System.out.printf("%s advertised %s but joins from %s%n", parameters.getString("myAlias"), advertised, from.getHostAddress());
+            joinJson = Chat.withParameter(joinJson, "myIp", Json.createArrayBuilder().add(from.getHostAddress()).build().get(0));
+        }
+        return Chat.withParameter(joinJson, "observed", JsonValue.TRUE);
+    }
+
+    /**
+     * Checks whether an address only reaches the machine it is used on
+     * @param host the address
+     * @return true for localhost, loopback and wildcard addresses
+     */
+    static boolean isLocal(String host) {
+        return host.equals("localhost") || host.startsWith("127.") || host.equals("0.0.0.0") || host.equals("::1");
+    }
+
+    /**
+     * Passes a JOIN that reached a leaving client on to the client's successor,
+     * adding the client to the predecessors the successor has to drop before it may accept the JOIN
+     * @param joinJson the message to pass on
+     */
+    public void redirect(JsonObject joinJson) {
+        JsonArrayBuilder avoid = Json.createArrayBuilder();
+        JsonArray avoided = joinJson.getJsonObject("parameters").getJsonArray("avoid");
+        if (avoided != null) {
+            for (JsonValue client : avoided) {
+                avoid.add(client);
+            }
+        }
+        avoid.add(Chat.toJson(this.chat.getSelf()));
+
+        Neighbours left = this.chat.membership.left;
+        if (!left.isSuccessor(this.chat.getHost(), this.chat.getPort())) {
+            sendLater(Chat.withParameter(joinJson, "avoid", avoid.build()), left.ipSuccessor, left.portSuccessor);
+        }
+    }
+
+    /**
+     * Checks whether a redirected JOIN has to wait for a client to leave
+     * @param joinJson the message
+     * @param ip the IP address of the current predecessor
+     * @param port the port of the current predecessor
+     * @return true if the predecessor is one of the clients that were leaving when they passed the JOIN on
+     */
+    static boolean avoids(JsonObject joinJson, String ip, int port) {
+        JsonArray avoided = joinJson.getJsonObject("parameters").getJsonArray("avoid");
+        if (avoided == null) return false;
+        for (JsonValue value : avoided) {
+            JsonObject client = (JsonObject) value;
+            if (client.getString("ip").equals(ip) && client.getInt("port") == port) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records on a NEWSUCCESSOR or LEAVE the address of the connection it came over, when connections are authenticated.
+     * Any holder of a certificate can write any ipFrom, but it can only connect from addresses it has.
+     * The sender a peer may have written itself is replaced, as are the senders recorded where the message was relayed.
+     * @param jsonMessage the message
+     * @param from the address the connection came from, or null if it isn't known
+     * @return the message with its sender recorded
+     */
+    JsonObject stamp(JsonObject jsonMessage, InetAddress from) {
+        if (this.chat.tls == null || from == null) return jsonMessage;
+        return Chat.withParameter(jsonMessage, "sender", Json.createArrayBuilder().add(from.getHostAddress()).build().get(0));
+    }
+
+    /**
+     * Checks whether a NEWSUCCESSOR or LEAVE comes from the client it has to come from.
+     * Messages from clients that don't say who they are from are accepted, unless they came over TLS.
+     * Over TLS the connection must also come from the client, or from the client that handed it over,
+     * which passes on the messages from behind it after it left.
+     * @param parameters the parameters of the message
+     * @param expected the client that may send the message
+     * @param handover how the client became the neighbour, or null
+     * @return true if the message may be applied
+     */
+    static boolean sentBy(JsonObject parameters, FingerTable.Finger expected, Membership.Handover handover) {
+        String sender = parameters.getString("sender", null);
+        if (!parameters.containsKey("ipFrom")) return sender == null;
+        if (!parameters.getString("ipFrom").equals(expected.ip) || parameters.getInt("portFrom") != expected.port) return false;
+        if (sender == null || connectedFrom(sender, expected.ip) || handover != null && handover.relayedBy(expected, sender)) return true;
+
+        System.out.printf("A message from %s:%d came over a connection from %s%n", expected.ip, expected.port, sender);
+        return false;
+    }
+
+    /**
+     * Checks whether a connection may have come from a client. Clients on this machine connect from the loopback
+     * address whatever address they go by, so connections from it may come from any of them.
+     * @param sender the address the connection came from
+     * @param host the address the client goes by
+     * @return true if the connection may be the client's
+     */
+    static boolean connectedFrom(String sender, String host) {
+        try {
+            InetAddress address = InetAddress.getByName(sender);
+            return address.isLoopbackAddress() || address.equals(InetAddress.getByName(host));
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Handover accessor
+     * @param parameters the parameters of an applied NEWSUCCESSOR or LEAVE
+     * @param ip the IP address of the neighbour it handed over
+     * @param port the port of the neighbour it handed over
+     * @return the neighbour and who handed it over
+     */
+    static Membership.Handover handover(JsonObject parameters, String ip, int port) {
+        return new Membership.Handover(ip, port, parameters.getString("sender", null));
+    }
+
+    /**
+     * Performs the necessary actions for a server-side JOIN message when the ring is ordered by alias hash.
+     * The joining client is inserted right before the client responsible for the hash of its alias,
+     * so the JOIN is passed along the ring until it gets there.
+     * @param joinJson the message to send over the socket
+     * @param clientAlias the alias of the client who wants to join
+     * @param clientIp the IP address of the client who wants to join
+     * @param clientPort the port of the client who wants to join
+     */
+    public void joinWithFingers(JsonObject joinJson, String clientAlias, String clientIp, int clientPort) {
+        long clientId = FingerTable.hash(clientAlias);
+        FingerTable.Finger hop = this.chat.nextHop(clientId);
+        if (hop != null) {
+            sendLater(joinJson, hop.ip, hop.port);
+            return;
+        }
+
+        System.out.printf("%s wants to join! Let's add them to our chat!%n", clientAlias);
+
+        // Send accept message to client who tried to join, telling it that we are its successor
+        Neighbours neighbours = this.chat.getNeighbours();
+        JsonObject acceptJson = this.chat.createMessage_ACCEPT(neighbours.ipPredecessor, neighbours.portPredecessor,
+            neighbours.idPredecessor, this.chat.getHost(), this.chat.getPort(), this.chat.getId(), clientIp);
+        sendLater(welcome(acceptJson, joinJson, clientAlias, clientIp, clientPort), clientIp, clientPort);
 
         // Send new successor message to previous predecessor
-        JsonObject successorJson = this.chat.createMessage_NEWSUCCESSOR("localhost", clientPort);
-        this.chat.sendJson(successorJson, this.chat.getIpPredecessor(), this.chat.getPortPredecessor());
+        JsonObject successorJson = Chat.withParameter(this.chat.createMessage_NEWSUCCESSOR(clientIp, clientPort, clientId), "joined", JsonValue.TRUE);
+        sendLater(successorJson, neighbours.ipPredecessor, neighbours.portPredecessor);
 
         // Update member variables for local client
-        this.chat.updatePortPredecessor(clientPort);
+        this.chat.updatePredecessor(clientIp, clientPort, clientId);
+        if (this.chat.fingers != null) {
+            this.chat.fingers.learn(new FingerTable.Finger(clientId, clientIp, clientPort));
+        }
+        this.chat.membership.defer(() -> announce(clientAlias, clientIp, clientPort));
+    }
+
+    /**
+     * Adds a client whose JOIN is accepted here to the membership view, and hands it the whole view with its ACCEPT
+     * @param acceptJson the ACCEPT for the client
+     * @param joinJson the JOIN of the client
+     * @param clientAlias the alias of the client who joins
+     * @param clientIp the IP address of the client who joins
+     * @param clientPort the port of the client who joins
+     * @return the ACCEPT to send
+     */
+    JsonObject welcome(JsonObject acceptJson, JsonObject joinJson, String clientAlias, String clientIp, int clientPort) {
+        if (this.chat.roster == null) return acceptJson;
+
+        JsonNumber incarnation = joinJson.getJsonObject("parameters").getJsonNumber("incarnation");
+        this.chat.roster.add(clientAlias, clientIp, clientPort, incarnation != null ? incarnation.longValue() : System.currentTimeMillis());
+        return gossip(acceptJson, clientIp, clientPort);
+    }
+
+    /**
+     * Adds the changes to the membership view a peer hasn't heard about yet to a message for it
+     * @param jsonMessage the message
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return the message, with the changes if there are any
+     */
+    JsonObject gossip(JsonObject jsonMessage, String ip, int port) {
+        if (this.chat.roster == null) return jsonMessage;
+
+        JsonArray members = this.chat.roster.delta(ip, port);
+        return members.isEmpty() ? jsonMessage : Chat.withParameter(jsonMessage, "members", members);
+    }
+
+    /**
+     * Sends an ARRIVED around the ring for a client that just joined, starting here, when messages are kept for absent receivers
+     * @param clientAlias the alias of the client who joined
+     * @param clientIp the IP address of the client who joined
+     * @param clientPort the port of the client who joined
+     */
+    public void announce(String clientAlias, String clientIp, int clientPort) {
+        if (this.chat.store == null) return;
+        arrived(this.chat.createMessage_ARRIVED(clientAlias, clientIp, clientPort, this.chat.getHost(), this.chat.getPort()));
+    }
+
+    /**
+     * Performs the necessary actions for a server-side ARRIVED message by handing the client who joined
+     * the messages kept for it here. The message is passed on until it has been around the ring once.
+     * @param arrivedJson the message to send over the socket
+     */
+    public void arrived(JsonObject arrivedJson) {
+        JsonObject parameters = arrivedJson.getJsonObject("parameters");
+        String ip = parameters.getString("ip");
+        int port = parameters.getInt("port");
+        if (this.chat.store != null) {
+            replay(parameters.getString("alias"), ip, port);
+        }
+
+        FingerTable.Finger successor = this.chat.getSuccessor();
+        boolean joined = successor.ip.equals(ip) && successor.port == port;
+        boolean origin = successor.ip.equals(parameters.getString("ipOrigin")) && successor.port == parameters.getInt("portOrigin");
+        if (!joined && !origin) {
+            this.chat.sendJson(arrivedJson, successor.ip, successor.port);
+        }
+    }
+
+    /**
+     * Sends the messages kept for a receiver straight to it. A message is only marked delivered once it was sent,
+     * and the ones left after a failed send stay kept for the next time the receiver joins.
+     * @param aliasReceiver the alias of the receiver
+     * @param ip the IP address of the receiver
+     * @param port the port of the receiver
+     */
+    public void replay(String aliasReceiver, String ip, int port) {
+        List<MessageLog.Entry> entries = this.chat.store.take(aliasReceiver);
+        if (entries.isEmpty()) return;
+
+        System.out.printf("Delivering %d kept messages to %s%n", entries.size(), aliasReceiver);
+        Iterator<MessageLog.Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            MessageLog.Entry entry = iterator.next();
+            if (!this.chat.deliver(entry.getMessage(), null, ip, port)) break;
+            this.chat.store.delivered(entry);
+            iterator.remove();
+        }
+        for (MessageLog.Entry entry : entries) {
+            this.chat.store.restore(entry);
+        }
+    }
+
+    /**
+     * Keeps a PUT whose receiver isn't in the ring until it joins
+     * @param putJson the message
+     * @return true if the message was stored
+     */
+    public boolean keep(JsonObject putJson) {
+        try {
+            this.chat.store.append(Outbox.kept(clearDirect(putJson)));
+        } catch(IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        settle(putJson);
+        return true;
+    }
+
+    /**
+     * Stops the sender of a numbered PUT from sending it again, since the receiver won't acknowledge a PUT
+     * that was kept for it or came back. The client keeping a PUT acknowledges it in the receiver's name.
+     * @param putJson the message
+     */
+    public void settle(JsonObject putJson) {
+        JsonObject parameters = putJson.getJsonObject("parameters");
+        if (!parameters.containsKey("seq")) return;
+
+        if (parameters.getString("aliasSender").equals(this.chat.getAlias())) {
+            if (this.chat.outbox != null) this.chat.outbox.forget(putJson);
+            return;
+        }
+        JsonObject ackJson = this.chat.createMessage_ACK(parameters.getString("aliasReceiver"), this.chat.getHost(), this.chat.getPort(),
+            parameters.getJsonNumber("session").longValue(), parameters.getJsonNumber("seq").longValue(), 0);
+        this.chat.sendJson(Chat.withParameter(ackJson, "kept", JsonValue.TRUE), parameters.getString("ipSender"), parameters.getInt("portSender"));
     }
 
     /**
      * Performs the necessary actions for a server-side ACCEPT message in the Flooding protocol.
+     * The ACCEPT names both neighbours, which are set together so no other change can come between them.
      * @param acceptJson the message to send over the socket
+     * @return true, as an ACCEPT never waits
      */
-    public void accept(JsonObject acceptJson) {
+    public boolean accept(JsonObject acceptJson) {
+        if (this.chat.membership.getState() != Membership.State.JOINING) {
+            System.out.println("Ignored an ACCEPT for a join that is over");
+            return true;
+        }
         System.out.printf("You've been accepted to the this.chat %s!%n", this.chat.getAlias());
 
-        String ip = acceptJson.getJsonObject("parameters").getString("ipPred");
-        Integer port = acceptJson.getJsonObject("parameters").getInt("portPred");
+        JsonObject parameters = acceptJson.getJsonObject("parameters");
+
+        // The ring may know this client by another address than the one it advertised
+        String ipJoiner = parameters.getString("ipJoiner", this.chat.getHost());
+        if (!ipJoiner.equals(this.chat.getHost())) {
+            System.out.printf("The chat knows you as %s%n", ipJoiner);
+            this.chat.host = ipJoiner;
+            if (this.chat.roster != null) {
+                this.chat.roster.join(ipJoiner, this.chat.getPort());
+            }
+        }
+
+        String ip = parameters.getString("ipPred");
+        Integer port = parameters.getInt("portPred");
+        String ipSucc = parameters.getString("ipSucc");
+        Integer portSucc = parameters.getInt("portSucc");
 
-        this.chat.updateIpPredecessor(ip);
-        this.chat.updatePortPredecessor(port);
+        // When routing with fingers, the client that accepted us is our successor and fills the finger table for now
+        if (this.chat.routesByHash() && parameters.containsKey("idSucc")) {
+            FingerTable.Finger successor = new FingerTable.Finger(parameters.getJsonNumber("idSucc").longValue(), ipSucc, portSucc);
+            long idPred = parameters.getJsonNumber("idPred").longValue();
+
+            this.chat.update(current -> current.withPredecessor(ip, port, idPred).withSuccessor(successor.ip, successor.port, successor.id));
+            if (this.chat.fingers != null) {
+                this.chat.fingers.fill(successor);
+                this.chat.fingers.learn(new FingerTable.Finger(idPred, ip, port));
+            }
+        } else {
+            this.chat.update(current -> current.withPredecessor(ip, port, current.idPredecessor).withSuccessor(ipSucc, portSucc, current.idSuccessor));
+        }
+        this.chat.membership.endJoin();
+        return true;
     }
 
     /**
      * Performs the necessary actions for a server-side NEWSUCCESSOR message in the Flooding protocol.
+     * Only the current successor may hand over its place. A client that left passes the message on to the
+     * predecessor it had, which took its place.
      * @param successorJson the message to send over the socket
+     * @return false if the NEWSUCCESSOR has to wait
      */
-    public void newSuccessor(JsonObject successorJson) {
-        System.out.printf("Your new successor is at port %d%n", this.chat.getPortSuccessor());
+    public boolean newSuccessor(JsonObject successorJson) {
+        JsonObject parameters = successorJson.getJsonObject("parameters");
+        switch(this.chat.membership.getState()) {
+            case JOINING:
+                return false;
+            case LEAVING:
+                passOnNewSuccessor(successorJson);
+                return true;
+            default:
+        }
+
+        String ip = parameters.getString("ipSuccessor");
+        Integer port = parameters.getInt("portSuccessor");
+        FingerTable.Finger oldSuccessor = this.chat.getSuccessor();
+        if (!sentBy(parameters, oldSuccessor, this.chat.membership.successorHandover)) return false;
+        this.chat.membership.successorHandover = handover(parameters, ip, port);
+
+        System.out.printf("Your new successor is at port %d%n", port);
+        if (this.chat.routesByHash() && parameters.containsKey("idSuccessor")) {
+            FingerTable.Finger successor = new FingerTable.Finger(parameters.getJsonNumber("idSuccessor").longValue(), ip, port);
+            this.chat.updateSuccessor(ip, port, successor.id);
 
-        String ip = successorJson.getJsonObject("parameters").getString("ipSuccessor");
-        Integer port = successorJson.getJsonObject("parameters").getInt("portSuccessor");
+            if (this.chat.fingers == null) return true;
 
-        this.chat.updateIpSuccessor(ip);
-        this.chat.updatePortSuccessor(port);
+            // A successor further along the ring than the old one means the old one left
+            if (oldSuccessor.id != successor.id && FingerTable.between(oldSuccessor.id, this.chat.getId(), successor.id)) {
+                this.chat.fingers.forget(oldSuccessor.ip, oldSuccessor.port, successor);
+            }
+            this.chat.fingers.learn(successor);
+            return true;
+        }
+
+        this.chat.updateSuccessor(ip, port);
+        return true;
     }
 
     /**
@@ -77,35 +623,891 @@ public class Server implements Runnable {
      * @param putJson the message to send over the socket
      */
     public void put(JsonObject putJson) {
+        if (this.chat.routesByHash()) {
+            putWithFingers(putJson);
+            return;
+        }
+
         String aliasSender = putJson.getJsonObject("parameters").getString("aliasSender");
         String aliasReceiver = putJson.getJsonObject("parameters").getString("aliasReceiver");
 
         // Message arrived back at sender which means receiver is not available
         if (aliasSender.equals(this.chat.getAlias())) {
-            System.out.printf("%s is not available in this chat room%n", aliasReceiver);
+            if (this.chat.store != null && keep(putJson)) {
+                System.out.printf("%s is not available in this chat room, they'll get your message when they join%n", aliasReceiver);
+            } else {
+                settle(putJson);
+                System.out.printf("%s is not available in this chat room%n", aliasReceiver);
+            }
         } else if (aliasReceiver.equals(this.chat.getAlias())) {
             // Message has arrived at correct place
-            String message = putJson.getJsonObject("parameters").getString("message");
-            System.out.printf("Message Alert! %s said '%s'%n", aliasSender, message);
+            receive(putJson);
         } else {
             // Pass message along circle
             System.out.println("I received a message but it's not for me!");
-            this.chat.sendJson(putJson, this.chat.getIpSuccessor(), this.chat.getPortSuccessor());
+            FingerTable.Finger successor = this.chat.getSuccessor();
+            this.chat.sendJson(relay(putJson), successor.ip, successor.port);
+        }
+    }
+
+    /**
+     * Shows a PUT that arrived at its receiver and lets the sender know about it.
+     * Numbered PUTs go through the inbox first, which may hold them back or drop them.
+     * @param putJson the message that arrived here
+     */
+    public void receive(JsonObject putJson) {
+        JsonObject parameters = putJson.getJsonObject("parameters");
+        if (this.chat.inbox == null || !parameters.containsKey("seq") || parameters.getBoolean("kept", false)) {
+            show(putJson);
+            acknowledge(putJson);
+            return;
+        }
+
+        // Showing under the lock keeps the PUTs of one sender in order when workers handle them at the same time
+        synchronized (this.chat.inbox) {
+            List<JsonObject> released = this.chat.inbox.accept(putJson, System.currentTimeMillis());
+            acknowledge(putJson);
+            for (JsonObject inOrder : released) {
+                show(inOrder);
+            }
+        }
+    }
+
+    /**
+     * Sends the acknowledgements the inbox owes, one ACK per sender. They go out asynchronously, so a sender
+     * that is slow to connect to doesn't hold up the others, and a lost one only means the sender sends again.
+     */
+    public void sendAcknowledgements() {
+        for (Inbox.Acknowledgement owed : this.chat.inbox.owed()) {
+            JsonObject ackJson = this.chat.createMessage_ACK(this.chat.getAlias(), this.chat.getHost(), this.chat.getPort(),
+                owed.session, owed.upTo, owed.upTo);
+            this.chat.sendAsync(ackJson, owed.ip, owed.port);
+        }
+    }
+
+    /**
+     * Shows the PUTs that were held back for a gap that wasn't filled in time
+     */
+    public void expireGaps() {
+        synchronized (this.chat.inbox) {
+            for (JsonObject putJson : this.chat.inbox.expire(System.currentTimeMillis())) {
+                show(putJson);
+            }
+        }
+    }
+
+    /**
+     * Shows a PUT to the user and lets any listener know about it
+     * @param putJson the message that arrived here
+     */
+    public void show(JsonObject putJson) {
+        String aliasSender = putJson.getJsonObject("parameters").getString("aliasSender");
+        String message = putJson.getJsonObject("parameters").getString("message");
+        System.out.printf("Message Alert! %s said '%s'%n", aliasSender, message);
+
+        if (this.chat.metrics != null) {
+            this.chat.metrics.delivered(putJson);
+        }
+        if (this.chat.deliveryListener != null) {
+            this.chat.deliveryListener.accept(putJson);
+        }
+    }
+
+    /**
+     * Tells the sender of a PUT where this client can be reached, so its next messages can come directly.
+     * Only PUTs that carry the sender's address are acknowledged. Numbered PUTs are acknowledged every time they arrive,
+     * copies included, so the sender stops sending them again. The inbox owes those acknowledgements for a while so one ACK
+     * covers many PUTs, but without an inbox every one is acknowledged on its own. Other PUTs only when they came around the ring.
+     * @param putJson the message that arrived here
+     */
+    public void acknowledge(JsonObject putJson) {
+        JsonObject parameters = putJson.getJsonObject("parameters");
+        if (!parameters.containsKey("ipSender")) return;
+
+        String aliasSender = parameters.getString("aliasSender");
+        String ipSender = parameters.getString("ipSender");
+        int portSender = parameters.getInt("portSender");
+        this.chat.rememberAddress(aliasSender, ipSender, portSender);
+
+        if (parameters.containsKey("seq")) {
+            if (this.chat.inbox != null) return;
+            JsonObject ackJson = this.chat.createMessage_ACK(this.chat.getAlias(), this.chat.getHost(), this.chat.getPort(),
+                parameters.getJsonNumber("session").longValue(), parameters.getJsonNumber("seq").longValue(), 0);
+            this.chat.sendJson(ackJson, ipSender, portSender);
+        } else if (!parameters.getBoolean("direct", false)) {
+            JsonObject deliveredJson = this.chat.createMessage_DELIVERED(this.chat.getAlias(), this.chat.getHost(), this.chat.getPort());
+            this.chat.sendJson(deliveredJson, ipSender, portSender);
+        }
+    }
+
+    /**
+     * Prepares a PUT for the next hop by counting the hop and clearing a stale direct flag
+     * @param putJson the message to pass on
+     * @return the message to forward
+     */
+    public JsonObject relay(JsonObject putJson) {
+        JsonObject relayed = clearDirect(putJson);
+        JsonObject parameters = relayed.getJsonObject("parameters");
+        if (!parameters.containsKey("hops")) return relayed;
+        return Chat.withParameter(relayed, "hops", parameters.getJsonNumber("hops").longValue() + 1);
+    }
+
+    /**
+     * Clears the direct flag of a PUT sent to a cached address that no longer belongs to the receiver,
+     * so the real receiver acknowledges it with its current address
+     * @param putJson the message to pass on
+     * @return the message without the direct flag
+     */
+    public JsonObject clearDirect(JsonObject putJson) {
+        if (!putJson.getJsonObject("parameters").getBoolean("direct", false)) return putJson;
+        return Chat.withParameter(putJson, "direct", JsonValue.FALSE);
+    }
+
+    /**
+     * Performs the necessary actions for a server-side DELIVERED message by caching the receiver's address
+     * @param deliveredJson the message to send over the socket
+     */
+    public void delivered(JsonObject deliveredJson) {
+        JsonObject parameters = deliveredJson.getJsonObject("parameters");
+        this.chat.rememberAddress(parameters.getString("alias"), parameters.getString("ip"), parameters.getInt("port"));
+    }
+
+    /**
+     * Performs the necessary actions for a server-side ACK message by caching the receiver's address
+     * and no longer sending the PUTs it acknowledged
+     * @param ackJson the message to send over the socket
+     */
+    public void ack(JsonObject ackJson) {
+        JsonObject parameters = ackJson.getJsonObject("parameters");
+        String alias = parameters.getString("alias");
+
+        // A kept PUT is acknowledged by the client keeping it, which isn't where the receiver can be reached
+        if (!parameters.getBoolean("kept", false)) {
+            this.chat.rememberAddress(alias, parameters.getString("ip"), parameters.getInt("port"));
+        }
+        if (this.chat.outbox != null) {
+            this.chat.outbox.acknowledged(alias, parameters.getJsonNumber("session").longValue(),
+                parameters.getJsonNumber("seq").longValue(), parameters.getJsonNumber("upTo").longValue());
+        }
+    }
+
+    /**
+     * Sends the numbered PUTs that went unacknowledged for too long again, on the way a new PUT would take.
+     * Runs on a thread of its own, as the sends block.
+     */
+    public void retransmit() {
+        for (JsonObject putJson : this.chat.outbox.due(System.currentTimeMillis())) {
+            String aliasReceiver = putJson.getJsonObject("parameters").getString("aliasReceiver");
+            if (this.chat.sendDirect(putJson, aliasReceiver)) continue;
+
+            FingerTable.Finger hop = this.chat.nextHop(aliasReceiver);
+            if (hop == null) {
+                // The receiver left the ring since the PUT was sent
+                this.chat.outbox.forget(putJson);
+                continue;
+            }
+            this.chat.sendJson(putJson, hop.ip, hop.port);
+        }
+    }
+
+    /**
+     * Performs the necessary actions for a server-side MULTICAST message.
+     * A receiver shows the message, moves itself from the receivers to the delivered list and passes it on,
+     * so the message reaches the whole group in a single lap. Once every receiver has it,
+     * it goes straight back to the sender instead of finishing the lap.
+     * @param multicastJson the message to send over the socket
+     */
+    public void multicast(JsonObject multicastJson) {
+        JsonObject parameters = multicastJson.getJsonObject("parameters");
+        String aliasSender = parameters.getString("aliasSender");
+        boolean all = parameters.getBoolean("all", false);
+
+        // Message came back to the sender, after a lap or from the last receiver
+        if (aliasSender.equals(this.chat.getAlias())) {
+            report(parameters);
+            return;
+        }
+
+        List<String> receivers = aliases(parameters.getJsonArray("aliasReceivers"));
+        if (all || receivers.remove(this.chat.getAlias())) {
+            System.out.printf("Message Alert! %s said '%s' to the group%n", aliasSender, parameters.getString("message"));
+
+            List<String> delivered = aliases(parameters.getJsonArray("delivered"));
+            delivered.add(this.chat.getAlias());
+            multicastJson = Chat.withParameter(multicastJson, "aliasReceivers", toJsonArray(receivers));
+            multicastJson = Chat.withParameter(multicastJson, "delivered", toJsonArray(delivered));
+
+            if (!all && receivers.isEmpty()) {
+                this.chat.sendJson(multicastJson, parameters.getString("ipSender"), parameters.getInt("portSender"));
+                return;
+            }
+        } else {
+            System.out.println("I received a group message but it's not for me!");
+        }
+
+        FingerTable.Finger successor = this.chat.getSuccessor();
+        this.chat.sendJson(multicastJson, successor.ip, successor.port);
+    }
+
+    /**
+     * Tells the sender of a MULTICAST who it reached
+     * @param parameters the parameters of the message that came back
+     */
+    public void report(JsonObject parameters) {
+        List<String> delivered = aliases(parameters.getJsonArray("delivered"));
+        List<String> missing = aliases(parameters.getJsonArray("aliasReceivers"));
+
+        System.out.printf("Your group message reached %d client(s)%s%n", delivered.size(),
+            delivered.isEmpty() ? "" : ": " + String.join(", ", delivered));
+        if (!missing.isEmpty()) {
+            System.out.printf("%s %s not available in this chat room%n", String.join(", ", missing), missing.size() == 1 ? "is" : "are");
+        }
+    }
+
+    /**
+     * Reads a list of aliases from a message
+     * @param array the JSON array of aliases
+     * @return the aliases, in a list that can be changed
+     */
+    static List<String> aliases(JsonArray array) {
+        List<String> aliases = new ArrayList<>();
+        for (JsonString alias : array.getValuesAs(JsonString.class)) {
+            aliases.add(alias.getString());
+        }
+        return aliases;
+    }
+
+    /**
+     * Writes a list of aliases for a message
+     * @param aliases the aliases
+     * @return the JSON array of aliases
+     */
+    static JsonArray toJsonArray(List<String> aliases) {
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (String alias : aliases) {
+            array.add(alias);
+        }
+        return array.build();
+    }
+
+    /**
+     * Performs the necessary actions for a server-side PUT message when the ring is ordered by alias hash.
+     * The message travels towards the hash of the receiver's alias. If the client responsible for that hash
+     * isn't the receiver, the receiver isn't in the ring and the message is sent back towards the sender.
+     * @param putJson the message to send over the socket
+     */
+    public void putWithFingers(JsonObject putJson) {
+        String aliasSender = putJson.getJsonObject("parameters").getString("aliasSender");
+        String aliasReceiver = putJson.getJsonObject("parameters").getString("aliasReceiver");
+        boolean returning = putJson.getJsonObject("parameters").getBoolean("returning", false);
+
+        if (returning && aliasSender.equals(this.chat.getAlias())) {
+            // Message came back to the sender which means receiver is not available
+            settle(putJson);
+            System.out.printf("%s is not available in this chat room%n", aliasReceiver);
+            return;
+        } else if (!returning && aliasReceiver.equals(this.chat.getAlias())) {
+            // Message has arrived at correct place
+            receive(putJson);
+            return;
+        }
+
+        FingerTable.Finger hop = this.chat.nextHop(FingerTable.hash(returning ? aliasSender : aliasReceiver));
+        if (hop == null && !returning && this.chat.store != null && keep(putJson)) {
+            // This client is responsible for the receiver's alias, so it keeps the message until the receiver joins
+            System.out.printf("Keeping a message from %s for %s until they join%n", aliasSender, aliasReceiver);
+            return;
+        }
+        if (hop == null && !returning) {
+            // The receiver would be right here, so send the message back to let the sender know
+            putJson = Chat.withParameter(putJson, "returning", JsonValue.TRUE);
+            hop = this.chat.nextHop(FingerTable.hash(aliasSender));
+        }
+        if (hop == null) {
+            System.out.printf("%s left before learning that %s is not available%n", aliasSender, aliasReceiver);
+            return;
+        }
+
+        System.out.println("I received a message but it's not for me!");
+        this.chat.sendJson(relay(putJson), hop.ip, hop.port);
+    }
+
+    /**
+     * Performs the necessary actions for a server-side PUT message that arrived in binary form.
+     * Only the aliases are read from the bytes, and a message that isn't for this client is forwarded untouched.
+     * Direct messages that reached the wrong client are decoded so their direct flag can be cleared.
+     * @param putMessage the binary message
+     */
+    public void put(byte[] putMessage) {
+        if (!forward(putMessage)) put(BinaryCodec.decode(putMessage));
+    }
+
+    /**
+     * Passes a binary PUT or CHUNK along without decoding it, if it is neither for nor from this client
+     * @param binaryMessage the binary message
+     * @return false if the message has to be decoded and handled here
+     */
+    public boolean forward(byte[] binaryMessage) {
+        if (BinaryCodec.parameterEquals(binaryMessage, "aliasSender", this.aliasBytes)
+                || BinaryCodec.parameterEquals(binaryMessage, "aliasReceiver", this.aliasBytes)
+                || BinaryCodec.parameterIsTrue(binaryMessage, "direct")) {
+            return false;
+        }
+
+        FingerTable.Finger hop = this.chat.getSuccessor();
+        if (this.chat.routesByHash()) {
+            boolean returning = BinaryCodec.parameterIsTrue(binaryMessage, "returning");
+            hop = this.chat.nextHop(FingerTable.hash(BinaryCodec.getStringParameter(binaryMessage, returning ? "aliasSender" : "aliasReceiver")));
+        }
+
+        // Pass message along circle, unless it has to be turned around here
+        if (hop == null) return false;
+        System.out.println("I received a message but it's not for me!");
+        BinaryCodec.incrementParameter(binaryMessage, "hops");
+        this.chat.forwardBinary(binaryMessage, hop.ip, hop.port);
+        return true;
+    }
+
+    /**
+     * Performs the necessary actions for a server-side CHUNK message. Chunks are routed like PUTs, one at a time,
+     * and the receiver writes each one to disk as it arrives. A chunk that finds no receiver goes back to the sender,
+     * which stops sending the rest of the file.
+     * @param chunkJson the message to send over the socket
+     */
+    public void chunk(JsonObject chunkJson) {
+        JsonObject parameters = chunkJson.getJsonObject("parameters");
+        String aliasSender = parameters.getString("aliasSender");
+        String aliasReceiver = parameters.getString("aliasReceiver");
+        boolean returning = parameters.getBoolean("returning", false);
+
+        if (aliasSender.equals(this.chat.getAlias()) && (returning || !this.chat.routesByHash())) {
+            // Chunk came back to the sender which means receiver is not available
+            if (this.chat.attachments.cancel(chunkJson)) {
+                System.out.printf("%s is not available in this chat room, stopped sending %s%n", aliasReceiver, parameters.getString("name"));
+            }
+            return;
+        }
+        if (!returning && aliasReceiver.equals(this.chat.getAlias())) {
+            try {
+                File saved = this.chat.attachments.write(chunkJson);
+                if (saved != null) {
+                    System.out.printf("Message Alert! %s sent you %s (%d bytes)%n", aliasSender, saved, saved.length());
+                    if (this.chat.attachmentListener != null) this.chat.attachmentListener.accept(aliasSender, saved);
+                }
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        FingerTable.Finger hop = this.chat.getSuccessor();
+        if (this.chat.routesByHash()) {
+            hop = this.chat.nextHop(FingerTable.hash(returning ? aliasSender : aliasReceiver));
+            if (hop == null && !returning) {
+                // The receiver would be right here, so send the chunk back to let the sender know
+                chunkJson = Chat.withParameter(chunkJson, "returning", JsonValue.TRUE);
+                hop = this.chat.nextHop(FingerTable.hash(aliasSender));
+            }
+            if (hop == null) return;
         }
+        this.chat.sendJson(chunkJson, hop.ip, hop.port);
     }
 
     /**
      * Performs the necessary actions for a server-side LEAVE message in the Flooding protocol.
+     * Only the current predecessor may leave. A client that left itself passes the message on to the
+     * successor it had, which took its place.
      * @param leaveJson the message to send over the socket
+     * @return false if the LEAVE has to wait
      */
-    public void leave(JsonObject leaveJson) {
+    public boolean leave(JsonObject leaveJson) {
+        JsonObject parameters = leaveJson.getJsonObject("parameters");
+        switch(this.chat.membership.getState()) {
+            case JOINING:
+                return false;
+            case LEAVING:
+                passOnLeave(leaveJson);
+                return true;
+            default:
+        }
+
+        String ip = parameters.getString("ipPred");
+        Integer port = parameters.getInt("portPred");
+        FingerTable.Finger leaving = this.chat.getNeighbours().getPredecessor();
+        if (!sentBy(parameters, leaving, this.chat.membership.predecessorHandover)) return false;
+        this.chat.membership.predecessorHandover = handover(parameters, ip, port);
+
         System.out.println("Server received leave message");
 
-        String ip = leaveJson.getJsonObject("parameters").getString("ipPred");
-        Integer port = leaveJson.getJsonObject("parameters").getInt("portPred");
+        // The leaving client's part of the ring is ours now
+        if (this.chat.routesByHash() && parameters.containsKey("idPred")) {
+            long idPred = parameters.getJsonNumber("idPred").longValue();
+            this.chat.updatePredecessor(ip, port, idPred);
+            if (this.chat.fingers != null) {
+                this.chat.fingers.forget(leaving.ip, leaving.port, this.chat.getSelf());
+                this.chat.fingers.learn(new FingerTable.Finger(idPred, ip, port));
+            }
+            return true;
+        }
+
+        this.chat.updatePredecessor(ip, port);
+        return true;
+    }
+
+    /**
+     * Passes a NEWSUCCESSOR that reached a leaving client on to the predecessor it had.
+     * The successor it names is the one this client tells about joins and leaves behind it from now on.
+     * If a client behind this one accepted a JOIN in the meantime, the new client took that client's place
+     * and got this client as its predecessor, so it is told about the leave as well. That holds even when the
+     * successor this client knows is out of date: a neighbour that left behind it may have handed its place
+     * on to the predecessor this client had, which happens when both leave at once.
+     * @param successorJson the message
+     */
+    public void passOnNewSuccessor(JsonObject successorJson) {
+        JsonObject parameters = successorJson.getJsonObject("parameters");
+        Neighbours left = this.chat.membership.left;
+        if (!left.isPredecessor(this.chat.getHost(), this.chat.getPort())) {
+            sendLater(successorJson, left.ipPredecessor, left.portPredecessor);
+        }
+
+        String ip = parameters.getString("ipSuccessor");
+        int port = parameters.getInt("portSuccessor");
+        if (sentBy(parameters, left.getSuccessor(), this.chat.membership.successorHandover)) {
+            this.chat.membership.successorHandover = handover(parameters, ip, port);
+            long id = parameters.containsKey("idSuccessor") ? parameters.getJsonNumber("idSuccessor").longValue() : left.idSuccessor;
+            this.chat.membership.left = left.withSuccessor(ip, port, id);
+        }
+        if (!parameters.getBoolean("joined", false)) return;
+
+        JsonObject leaveJson = !this.chat.routesByHash()
+            ? this.chat.createMessage_LEAVE(left.ipPredecessor, left.portPredecessor)
+            : this.chat.createMessage_LEAVE(left.ipPredecessor, left.portPredecessor, left.idPredecessor);
+        sendLater(leaveJson, ip, port);
+    }
+
+    /**
+     * Passes a LEAVE that reached a leaving client on to the successor it had.
+     * The predecessor it names is the one this client tells clients that join behind it from now on.
+     * @param leaveJson the message
+     */
+    public void passOnLeave(JsonObject leaveJson) {
+        JsonObject parameters = leaveJson.getJsonObject("parameters");
+        Neighbours left = this.chat.membership.left;
+        if (!left.isSuccessor(this.chat.getHost(), this.chat.getPort())) {
+            sendLater(leaveJson, left.ipSuccessor, left.portSuccessor);
+        }
+        if (!sentBy(parameters, left.getPredecessor(), this.chat.membership.predecessorHandover)) return;
+        this.chat.membership.predecessorHandover = handover(parameters, parameters.getString("ipPred"), parameters.getInt("portPred"));
+
+        long id = parameters.containsKey("idPred") ? parameters.getJsonNumber("idPred").longValue() : left.idPredecessor;
+        this.chat.membership.left = left.withPredecessor(parameters.getString("ipPred"), parameters.getInt("portPred"), id);
+    }
+
+    /**
+     * Performs the necessary actions for a server-side FIND message.
+     * The client responsible for the key answers the client asking, everyone else passes the FIND along.
+     * @param findJson the message to send over the socket
+     */
+    public void find(JsonObject findJson) {
+        JsonObject parameters = findJson.getJsonObject("parameters");
+        FingerTable.Finger hop = this.chat.nextHop(parameters.getJsonNumber("key").longValue());
+        if (hop != null) {
+            this.chat.sendJson(findJson, hop.ip, hop.port);
+            return;
+        }
 
-        this.chat.updateIpPredecessor(ip);
-        this.chat.updatePortPredecessor(port);
+        JsonObject foundJson = this.chat.createMessage_FOUND(parameters.getInt("index"), this.chat.getId(), this.chat.getHost(), this.chat.getPort());
+        this.chat.sendJson(foundJson, parameters.getString("ipOrigin"), parameters.getInt("portOrigin"));
+    }
+
+    /**
+     * Performs the necessary actions for a server-side FOUND message by fixing the finger that was looked up
+     * @param foundJson the message to send over the socket
+     */
+    public void found(JsonObject foundJson) {
+        JsonObject parameters = foundJson.getJsonObject("parameters");
+        FingerTable.Finger finger = new FingerTable.Finger(parameters.getJsonNumber("id").longValue(),
+            parameters.getString("ip"), parameters.getInt("port"));
+        this.chat.fingers.update(parameters.getInt("index"), finger);
+    }
+
+    /**
+     * Refreshes one finger per call, cycling through the table.
+     * Fingers are looked up with a FIND unless this client is itself responsible for the finger's start.
+     */
+    public void fixNextFinger() {
+        int index = this.nextFinger;
+        this.nextFinger = (index + 1) % FingerTable.BITS;
+
+        long key = this.chat.fingers.start(index);
+        FingerTable.Finger hop = this.chat.nextHop(key);
+        if (hop == null) {
+            this.chat.fingers.update(index, this.chat.getSelf());
+        } else {
+            this.chat.sendJson(this.chat.createMessage_FIND(key, index, this.chat.getHost(), this.chat.getPort()), hop.ip, hop.port);
+        }
+    }
+
+    /**
+     * Sends the successor a heartbeat, after skipping over it if it hasn't answered the last ones.
+     * Heartbeats go out asynchronously, and one that can't be sent is only noticed through the missing answer.
+     * They also carry the membership view, so with gossip but without failure detection they are sent all the same.
+     */
+    public void heartbeat() {
+        if (this.chat.membership.getState() != Membership.State.MEMBER) return;
+        Neighbours neighbours = this.chat.getNeighbours();
+        if (neighbours.isSuccessor(this.chat.getHost(), this.chat.getPort())) return;
+
+        // Only current neighbours are timed, so a client that becomes one again starts with a clean slate
+        this.lastHeard.keySet().retainAll(Arrays.asList(neighbours.ipSuccessor + ":" + neighbours.portSuccessor,
+            neighbours.ipPredecessor + ":" + neighbours.portPredecessor));
+
+        if (this.chat.successorListSize > 0 && silent(neighbours.ipSuccessor, neighbours.portSuccessor)) {
+            neighbours = skipSuccessor(neighbours);
+            if (neighbours.isSuccessor(this.chat.getHost(), this.chat.getPort())) return;
+        }
+
+        JsonObject pingJson = this.chat.createMessage_PING(this.chat.getHost(), this.chat.getPort(), this.chat.getId());
+        this.chat.sendAsync(gossip(pingJson, neighbours.ipSuccessor, neighbours.portSuccessor), neighbours.ipSuccessor, neighbours.portSuccessor);
+    }
+
+    /**
+     * Checks whether a neighbour has been silent for longer than FAILURE_TIMEOUT_MS.
+     * A neighbour that was never heard from counts from the first check.
+     * @param ip the IP address of the neighbour
+     * @param port the port of the neighbour
+     * @return true if the neighbour counts as failed
+     */
+    boolean silent(String ip, int port) {
+        long now = System.currentTimeMillis();
+        return now - this.lastHeard.computeIfAbsent(ip + ":" + port, key -> now) > FAILURE_TIMEOUT_MS;
+    }
+
+    /**
+     * Replaces a successor that failed with the closest live client after it
+     * @param seen the snapshot in which the successor was found silent
+     * @return the snapshot that is current afterwards
+     */
+    public Neighbours skipSuccessor(Neighbours seen) {
+        FingerTable.Finger failed = seen.getSuccessor();
+        Neighbours current;
+        synchronized (this.chat.membership) {
+            current = this.chat.update(neighbours -> neighbours.isSuccessor(failed.ip, failed.port)
+                ? neighbours.skipSuccessor(this.chat.getSelf())
+                : neighbours);
+        }
+        if (current.isSuccessor(failed.ip, failed.port)) return current;
+
+        System.out.printf("Your successor at port %d stopped answering, your new successor is at port %d%n", failed.port, current.portSuccessor);
+        this.lastHeard.remove(failed.ip + ":" + failed.port);
+        if (this.chat.fingers != null) {
+            this.chat.fingers.forget(failed.ip, failed.port, current.getSuccessor());
+        }
+        if (this.chat.roster != null) {
+            this.chat.roster.fail(failed.ip, failed.port);
+        }
+        return current;
+    }
+
+    /**
+     * Performs the necessary actions for a server-side PING message.
+     * The client sending it becomes the predecessor if the current predecessor has failed, which repairs the ring
+     * after a predecessor skipped over a failed client. The answer tells the sender about the clients after it.
+     * @param pingJson the message to send over the socket
+     */
+    public void ping(JsonObject pingJson) {
+        JsonObject parameters = pingJson.getJsonObject("parameters");
+        String ip = parameters.getString("ip");
+        int port = parameters.getInt("port");
+        long id = parameters.getJsonNumber("id").longValue();
+        this.lastHeard.put(ip + ":" + port, System.currentTimeMillis());
+
+        Neighbours neighbours;
+        synchronized (this.chat.membership) {
+            neighbours = this.chat.getNeighbours();
+            boolean alone = neighbours.isPredecessor(this.chat.getHost(), this.chat.getPort());
+            boolean member = this.chat.membership.getState() == Membership.State.MEMBER && this.chat.successorListSize > 0;
+            if (member && !neighbours.isPredecessor(ip, port) && (alone || silent(neighbours.ipPredecessor, neighbours.portPredecessor))) {
+                System.out.printf("Your predecessor at port %d stopped answering, your new predecessor is at port %d%n", neighbours.portPredecessor, port);
+                this.lastHeard.remove(neighbours.ipPredecessor + ":" + neighbours.portPredecessor);
+                if (this.chat.roster != null && !alone) {
+                    this.chat.roster.fail(neighbours.ipPredecessor, neighbours.portPredecessor);
+                }
+                neighbours = this.chat.update(current -> current.withPredecessor(ip, port, id));
+                if (this.chat.fingers != null) {
+                    this.chat.fingers.learn(new FingerTable.Finger(id, ip, port));
+                }
+            }
+        }
+
+        this.chat.sendAsync(gossip(this.chat.createMessage_PONG(neighbours), ip, port), ip, port);
+    }
+
+    /**
+     * Performs the necessary actions for a server-side PONG message by taking over the successor's successors.
+     * The list stops before this client, since a ring shorter than the list leads back here.
+     * @param pongJson the message to send over the socket
+     */
+    public void pong(JsonObject pongJson) {
+        JsonObject parameters = pongJson.getJsonObject("parameters");
+        String ip = parameters.getString("ip");
+        int port = parameters.getInt("port");
+        this.lastHeard.put(ip + ":" + port, System.currentTimeMillis());
+        if (this.chat.successorListSize == 0) return;
+
+        List<FingerTable.Finger> successors = new ArrayList<>();
+        for (JsonValue value : parameters.getJsonArray("successors")) {
+            JsonObject successor = (JsonObject) value;
+            if (successors.size() >= this.chat.successorListSize - 1) break;
+            if (successor.getString("ip").equals(this.chat.getHost()) && successor.getInt("port") == this.chat.getPort()) break;
+            successors.add(new FingerTable.Finger(successor.getJsonNumber("id").longValue(), successor.getString("ip"), successor.getInt("port")));
+        }
+        this.chat.update(current -> current.isSuccessor(ip, port) ? current.withSuccessors(successors) : current);
+    }
+
+    /**
+     * Handles one message according to its type, on the calling thread
+     * @param jsonMessage the message received from another client
+     * @param from the address the message came from, or null if it isn't known
+     */
+    public void dispatch(JsonObject jsonMessage, InetAddress from) {
+        String responseType = jsonMessage.getString("type");
+        if (this.chat.metrics != null) this.chat.metrics.received(responseType);
+
+        HandlerRegistry.Handler handler = this.handlers.get(responseType);
+        if (handler == null) {
+            System.out.printf("I received a JSON with an unknown type (%s)%n", responseType);
+            return;
+        }
+
+        // Any message may bring news about the members, which is taken in before the message is handled
+        if (this.chat.roster != null) {
+            JsonArray members = jsonMessage.getJsonObject("parameters").getJsonArray("members");
+            if (members != null) this.chat.roster.merge(members);
+        }
+        handler.json.handle(jsonMessage, from);
+    }
+
+    /**
+     * Handles one message that arrived in binary form, on the calling thread.
+     * Types with a binary handler, like PUTs, are routed straight from the bytes, everything else is decoded and handled like JSON.
+     * @param binaryMessage the message received from another client
+     * @param from the address the message came from
+     */
+    public void dispatchBinary(byte[] binaryMessage, InetAddress from) {
+        HandlerRegistry.Handler handler = this.handlers.get(BinaryCodec.getTypeCode(binaryMessage));
+        if (handler != null && handler.binary != null) {
+            if (this.chat.metrics != null) this.chat.metrics.received(handler.type);
+            handler.binary.handle(binaryMessage, from);
+        } else {
+            dispatch(BinaryCodec.decode(binaryMessage), from);
+        }
+    }
+
+    /**
+     * Handles one message that arrived in a frame, either in binary form or as JSON text
+     * @param payload the bytes of the message
+     * @param from the address the message came from
+     */
+    public void dispatchFrame(byte[] payload, InetAddress from) {
+        if (BinaryCodec.isBinary(payload)) {
+            dispatchBinary(payload, from);
+        } else {
+            dispatch(PeerConnection.fromBytes(payload), from);
+        }
+    }
+
+    /**
+     * Handles the messages of a batch in order. The PUTs that aren't for this client are queued
+     * on the next connection's batch as they are handled, and relayed together once the whole batch is done.
+     * Control messages that were sent ahead of the PUTs go to the control pool, like those that come on their own.
+     * @param connection the connection the batch came from
+     * @param batch the batch frame received from another client
+     * @param from the address the batch came from
+     * @throws IOException if the batch frame is malformed
+     */
+    public void dispatchBatch(InboundConnection connection, byte[] batch, InetAddress from) throws IOException {
+        for (byte[] payload : PeerConnection.unpackBatch(batch)) {
+            if (this.handlers.mode(payload) == HandlerRegistry.Mode.CONTROL) {
+                execute(connection, HandlerRegistry.Mode.CONTROL, () -> dispatchFrame(payload, from));
+                continue;
+            }
+            try {
+                dispatchFrame(payload, from);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        this.chat.flushBatches();
+    }
+
+    /**
+     * Parses a legacy message, which is JSON text written through an ObjectOutputStream
+     * @param stream the complete stream sent by the peer
+     * @return the parsed message
+     * @throws IOException if the stream isn't a valid ObjectOutputStream stream
+     */
+    public JsonObject parseLegacy(byte[] stream) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(stream));
+        JsonReader jsonreader = Json.createReader(ois);
+        return jsonreader.readObject();
+    }
+
+    /**
+     * Hands a message to where its type is handled. The connection's executors keep its messages of each kind in order,
+     * but control messages may overtake the PUTs queued before them.
+     * @param connection the connection the message came from
+     * @param payload the raw message
+     * @param legacy true if the payload is a legacy ObjectOutputStream stream rather than a frame
+     */
+    public void submit(InboundConnection connection, byte[] payload, boolean legacy) {
+        if (this.chat.metrics != null) this.chat.metrics.receivedBytes(payload.length);
+        InetAddress from = connection.getRemoteAddress();
+
+        if (legacy) {
+            // A legacy stream has to be parsed to learn its type, and its connection carries no other message to keep order with
+            connection.executor.execute(() -> {
+                try {
+                    JsonObject jsonMessage = parseLegacy(payload);
+                    execute(connection, this.handlers.mode(jsonMessage.getString("type")), () -> dispatch(jsonMessage, from));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            return;
+        }
+
+        // Batches carry PUTs, and at most the control messages sent while they waited
+        if (PeerConnection.isBatch(payload)) {
+            execute(connection, HandlerRegistry.Mode.BULK, () -> {
+                try {
+                    dispatchBatch(connection, payload, from);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            return;
+        }
+        execute(connection, this.handlers.mode(payload), () -> dispatchFrame(payload, from));
+    }
+
+    /**
+     * Runs the handling of a message where its type says
+     * @param connection the connection the message came from
+     * @param mode where to run it
+     * @param task the handling of the message
+     */
+    void execute(InboundConnection connection, HandlerRegistry.Mode mode, Runnable task) {
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        };
+        switch(mode) {
+            case INLINE:
+                guarded.run();
+                break;
+            case CONTROL:
+                connection.control.execute(guarded);
+                break;
+            default: connection.executor.execute(guarded);
+        }
+    }
+
+    /**
+     * Accepts a pending connection and registers it for reads
+     * @param selector the selector of the server
+     * @param serverChannel the listening channel
+     * @throws IOException if the connection can't be set up
+     */
+    public void acceptConnection(Selector selector, ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        if (!channel.socket().getInetAddress().isLoopbackAddress()) {
+            this.chat.learnHost(channel.socket().getLocalAddress().getHostAddress());
+        }
+        SSLEngine engine = this.chat.tls != null ? this.chat.tls.serverEngine() : null;
+        channel.register(selector, SelectionKey.OP_READ, new InboundConnection(channel, this.workers, this.controlWorkers, engine));
+    }
+
+    /**
+     * Reads from a connection that is ready and hands the complete messages to the workers
+     * @param key the selection key of the connection
+     */
+    public void readConnection(SelectionKey key) {
+        InboundConnection connection = (InboundConnection) key.attachment();
+        try {
+            for (byte[] payload : connection.read()) {
+                submit(connection, payload, false);
+            }
+
+            // Finish writing the handshake reply when the socket has room for it
+            if (!connection.flush()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+
+            // Leave the connection alone until the TLS handshake can go on, then pick up where it stopped
+            if (connection.hasDelegatedTasks()) {
+                key.interestOps(0);
+                connection.runDelegatedTasks(this.handshakes, () -> {
+                    this.resumed.add(key);
+                    key.selector().wakeup();
+                });
+            }
+        } catch (EOFException e) {
+            // A legacy peer is done writing its single message, a framed peer no longer needs the connection
+            byte[] legacyMessage = connection.getLegacyMessage();
+            if (legacyMessage != null) {
+                submit(connection, legacyMessage, true);
+            }
+            key.cancel();
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            key.cancel();
+            connection.close();
+        }
+    }
+
+    /**
+     * Writes the rest of a pending handshake reply
+     * @param key the selection key of the connection
+     */
+    public void writeConnection(SelectionKey key) {
+        InboundConnection connection = (InboundConnection) key.attachment();
+        try {
+            if (connection.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            key.cancel();
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes the connections that didn't get through their handshake within HANDSHAKE_TIMEOUT_MS of being accepted,
+     * so a peer that connects and goes quiet doesn't hold on to a key, its buffers and its TLS engine
+     * @param selector the selector of the server
+     * @param now the current time, in milliseconds
+     */
+    void closeStalledConnections(Selector selector, long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof InboundConnection)) continue;
+
+            InboundConnection connection = (InboundConnection) key.attachment();
+            if (key.isValid() && connection.isStalled(now)) {
+                System.out.printf("Closing the connection from %s, which didn't finish its handshake%n", connection.getRemoteAddress());
+                key.cancel();
+                connection.close();
+            }
+        }
     }
 
     /**
@@ -113,36 +1515,65 @@ public class Server implements Runnable {
      */
     public void run() {
         try {
-            ServerSocket serverSocket = new ServerSocket(this.chat.getPort());
+            Selector selector = Selector.open();
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(this.chat.bindToHost
+                ? new InetSocketAddress(this.chat.getHost(), this.chat.getPort())
+                : new InetSocketAddress(this.chat.getPort()));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            ScheduledExecutorService stabilizer = Executors.newSingleThreadScheduledExecutor();
+            if (this.chat.fingers != null) {
+                stabilizer.scheduleWithFixedDelay(this::fixNextFinger, FIX_FINGERS_INTERVAL_MS, FIX_FINGERS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            if (this.chat.successorListSize > 0 || this.chat.roster != null) {
+                stabilizer.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            if (this.chat.outbox != null) {
+                // Retransmitting waits for the connections it opens, up to PeerConnection.CONNECT_TIMEOUT_MS to a client
+                // that is gone, so it gets a thread of its own rather than holding up the heartbeats
+                ScheduledExecutorService retransmitter = Executors.newSingleThreadScheduledExecutor();
+                retransmitter.scheduleWithFixedDelay(this::retransmit, RETRANSMIT_INTERVAL_MS, RETRANSMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            if (this.chat.inbox != null) {
+                stabilizer.scheduleWithFixedDelay(this::sendAcknowledgements, ACK_INTERVAL_MS, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                stabilizer.scheduleWithFixedDelay(this::expireGaps, RETRANSMIT_INTERVAL_MS, RETRANSMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            stabilizer.scheduleWithFixedDelay(() -> this.chat.attachments.expire(System.currentTimeMillis()),
+                DOWNLOAD_CHECK_INTERVAL_MS, DOWNLOAD_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            long nextHandshakeCheck = System.currentTimeMillis() + HANDSHAKE_CHECK_INTERVAL_MS;
             while (true) {
-                Socket clientSocket = serverSocket.accept(); // Block until a client connects
-                ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream()); // Get data from client socket
-
-                // Read message from client
-                JsonReader jsonreader = Json.createReader(ois);
-                JsonObject jsonMessage = jsonreader.readObject();
-                String responseType = jsonMessage.getString("type");
-
-                switch(responseType) {
-                    case "JOIN":
-                        join(jsonMessage);
-                        break;
-                    case "ACCEPT":
-                        accept(jsonMessage);
-                        break;
-                    case "NEWSUCCESSOR":
-                        newSuccessor(jsonMessage);
-                        break;
-                    case "PUT":
-                        put(jsonMessage);
-                        break;
-                    case "LEAVE":
-                        leave(jsonMessage);
-                        break;
-                    default: System.out.printf("I received a JSON with an unknown type (%s)%n", responseType);
+                selector.select(HANDSHAKE_CHECK_INTERVAL_MS); // Block until a connection is ready, or it is time to check the handshakes
+
+                long now = System.currentTimeMillis();
+                if (now >= nextHandshakeCheck) {
+                    closeStalledConnections(selector, now);
+                    nextHandshakeCheck = now + HANDSHAKE_CHECK_INTERVAL_MS;
                 }
 
-                clientSocket.close(); // Close the current client connection to receive other client requests
+                // Connections whose TLS handshake was held up may already have the next handshake messages buffered
+                for (SelectionKey key = this.resumed.poll(); key != null; key = this.resumed.poll()) {
+                    if (!key.isValid()) continue;
+                    key.interestOps(SelectionKey.OP_READ);
+                    readConnection(key);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        acceptConnection(selector, serverChannel);
+                        continue;
+                    }
+                    if (key.isReadable()) readConnection(key);
+                    if (key.isValid() && key.isWritable()) writeConnection(key);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,126 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class creates a self-signed certificate authority and key stores signed by it, for running the chat with --tls
+ * on a test setup. It drives the keytool of the JDK it runs on, so nothing beyond the JDK is needed.
+ * The directory ends up with the key stores TlsContext looks for: trust.p12 with the certificate of the authority,
+ * peer.p12 shared by every client without a key store of its own, and alias.p12 for every alias given.
+ * The key of the authority is kept in ca.p12, so running this again with other aliases adds their key stores.
+ * e.g. java TestAuthority tls alice bob, then java Chat alice 4001 --tls tls
+ */
+public class TestAuthority {
+    // Key store holding the key of the authority
+    static final String AUTHORITY_KEY_STORE = "ca.p12";
+
+    // How long the certificates are valid
+    static final int VALIDITY_DAYS = 3650;
+
+    /**
+     * Runs keytool
+     * @param args the arguments of keytool
+     * @throws IOException if keytool fails
+     * @throws InterruptedException if interrupted while waiting for keytool
+     */
+    static void keytool(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] block = new byte[4096];
+            for (int read = in.read(block); read >= 0; read = in.read(block)) {
+                output.write(block, 0, read);
+            }
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool " + args[0] + " failed: " + output.toString("UTF-8").trim());
+        }
+    }
+
+    /**
+     * Creates the authority if the directory doesn't have one yet
+     * @param directory where the key stores go
+     * @param password the password of the key stores
+     * @throws IOException if keytool fails
+     * @throws InterruptedException if interrupted while waiting for keytool
+     */
+    static void authority(File directory, String password) throws IOException, InterruptedException {
+        File keys = new File(directory, AUTHORITY_KEY_STORE);
+        if (keys.isFile()) return;
+
+        File certificate = new File(directory, "ca.pem");
+        keytool("-genkeypair", "-alias", "ca", "-keyalg", "EC", "-keysize", "256", "-dname", "CN=Chat test CA",
+            "-ext", "bc:c", "-validity", String.valueOf(VALIDITY_DAYS),
+            "-keystore", keys.getPath(), "-storetype", "PKCS12", "-storepass", password, "-keypass", password);
+        keytool("-exportcert", "-alias", "ca", "-rfc", "-file", certificate.getPath(),
+            "-keystore", keys.getPath(), "-storepass", password);
+        keytool("-importcert", "-alias", "ca", "-noprompt", "-file", certificate.getPath(),
+            "-keystore", new File(directory, TlsContext.TRUST_STORE).getPath(), "-storetype", "PKCS12", "-storepass", password);
+    }
+
+    /**
+     * Creates the key store of a client, with a certificate signed by the authority
+     * @param directory where the key stores go
+     * @param name the name of the key store, without .p12
+     * @param password the password of the key stores
+     * @throws IOException if keytool fails
+     * @throws InterruptedException if interrupted while waiting for keytool
+     */
+    static void peer(File directory, String name, String password) throws IOException, InterruptedException {
+        File keys = new File(directory, name + TlsContext.KEY_STORE_SUFFIX);
+        File request = new File(directory, name + ".csr");
+        File certificate = new File(directory, name + ".pem");
+        String authority = new File(directory, AUTHORITY_KEY_STORE).getPath();
+
+        keytool("-genkeypair", "-alias", "peer", "-keyalg", "EC", "-keysize", "256", "-dname", "CN=" + name,
+            "-validity", String.valueOf(VALIDITY_DAYS),
+            "-keystore", keys.getPath(), "-storetype", "PKCS12", "-storepass", password, "-keypass", password);
+        keytool("-certreq", "-alias", "peer", "-file", request.getPath(), "-keystore", keys.getPath(), "-storepass", password);
+        keytool("-gencert", "-alias", "ca", "-rfc", "-infile", request.getPath(), "-outfile", certificate.getPath(),
+            "-validity", String.valueOf(VALIDITY_DAYS), "-ext", "ku:c=digitalSignature", "-ext", "eku=serverAuth,clientAuth",
+            "-keystore", authority, "-storepass", password);
+
+        // The key store needs the authority to take the signed certificate, which then comes with its whole chain
+        keytool("-importcert", "-alias", "ca", "-noprompt", "-file", new File(directory, "ca.pem").getPath(),
+            "-keystore", keys.getPath(), "-storepass", password);
+        keytool("-importcert", "-alias", "peer", "-noprompt", "-file", certificate.getPath(),
+            "-keystore", keys.getPath(), "-storepass", password);
+
+        if (!request.delete() || !certificate.delete()) {
+            System.out.printf("Couldn't clean up the files of %s%n", name);
+        }
+    }
+
+    /**
+     * Creates the key stores
+     * @param args the directory for the key stores, followed by the aliases that get a key store of their own
+     * @throws Exception if a key store can't be created
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Parameter: <directory> [alias...]");
+        }
+        File directory = new File(args[0]);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        String password = new String(TlsContext.password());
+
+        authority(directory, password);
+        if (!new File(directory, TlsContext.SHARED_KEY_STORE).isFile()) {
+            peer(directory, TlsContext.SHARED_KEY_STORE.replace(TlsContext.KEY_STORE_SUFFIX, ""), password);
+        }
+        for (int i = 1; i < args.length; i++) {
+            peer(directory, args[i], password);
+        }
+        System.out.printf("Key stores are in %s, run the chat with --tls %s%n", directory, directory);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,142 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+
+/**
+ * This class holds what a client needs to talk TLS to its peers: its own certificate and key, and the certificate
+ * of the authority that signed the certificates of all peers. Both ends of a connection show their certificate,
+ * so only holders of a certificate from that authority can send the messages that rewire the ring.
+ * Peers are addressed by IP and port, so a certificate vouches for being a peer, not for a host name.
+ * Handshakes are expensive, so sessions are cached on both sides: a pooled connection pays for one once,
+ * and a client connecting to a peer again resumes the session with the ticket the peer handed out the last time.
+ * See TestAuthority for creating the key stores.
+ */
+public class TlsContext {
+    // Key store of a client, named after its alias, and the one used by clients that don't have their own
+    static final String KEY_STORE_SUFFIX = ".p12";
+    static final String SHARED_KEY_STORE = "peer.p12";
+
+    // Key store holding only the certificate of the authority
+    static final String TRUST_STORE = "trust.p12";
+
+    // System property with the password of the key stores, and the password used without it
+    static final String PASSWORD_PROPERTY = "chat.tls.password";
+    static final String DEFAULT_PASSWORD = "changeit";
+
+    // How long a session may be resumed, and how many sessions each side keeps
+    static final int SESSION_TIMEOUT_S = 24 * 60 * 60;
+    static final int SESSION_CACHE_SIZE = 1024;
+
+    SSLContext context;
+
+    /**
+     * Constructor for the TlsContext class. Loads the key stores of a client.
+     * @param directory the directory holding the key stores
+     * @param alias the name of the client, whose key store is used if there is one
+     * @throws IOException if a key store can't be read or doesn't hold a usable key and certificate
+     */
+    public TlsContext(File directory, String alias) throws IOException {
+        File keys = new File(directory, alias + KEY_STORE_SUFFIX);
+        if (!keys.isFile()) keys = new File(directory, SHARED_KEY_STORE);
+        char[] password = password();
+
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(load(keys, password), password);
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(load(new File(directory, TRUST_STORE), password));
+
+            this.context = SSLContext.getInstance("TLS");
+            this.context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        } catch(GeneralSecurityException e) {
+            throw new IOException("Can't set up TLS from " + directory + ": " + e.getMessage(), e);
+        }
+
+        for (SSLSessionContext sessions : new SSLSessionContext[] { this.context.getClientSessionContext(), this.context.getServerSessionContext() }) {
+            sessions.setSessionTimeout(SESSION_TIMEOUT_S);
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        }
+    }
+
+    /**
+     * Password accessor
+     * @return the password of the key stores
+     */
+    static char[] password() {
+        return System.getProperty(PASSWORD_PROPERTY, DEFAULT_PASSWORD).toCharArray();
+    }
+
+    /**
+     * Loads a PKCS12 key store
+     * @param file the key store
+     * @param password the password of the key store
+     * @return the key store
+     * @throws IOException if the key store can't be read
+     * @throws GeneralSecurityException if the key store is broken
+     */
+    static KeyStore load(File file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    /**
+     * Creates the engine for a connection a peer opened to this client. The peer has to show its certificate.
+     * @return the engine, before the handshake
+     */
+    public SSLEngine serverEngine() {
+        SSLEngine engine = this.context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(true);
+        return engine;
+    }
+
+    /**
+     * Connects to a peer and performs the handshake, resuming an earlier session with the peer if there is one.
+     * Both the connection and the handshake time out, so a peer that stopped answering doesn't hold up the sender.
+     * @param ip the IP address of the peer
+     * @param port the port of the peer
+     * @return the connected socket
+     * @throws IOException if the peer can't be reached or the handshake fails
+     */
+    public Socket connect(String ip, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) this.context.getSocketFactory().createSocket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(ip, port), PeerConnection.CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(PeerConnection.HANDSHAKE_TIMEOUT_MS);
+            socket.startHandshake();
+            socket.setSoTimeout(0);
+        } catch(IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Drops the sessions this client could resume, so the next connection to every peer does a full handshake
+     */
+    public void forgetSessions() {
+        SSLSessionContext sessions = this.context.getClientSessionContext();
+        for (byte[] id : Collections.list(sessions.getIds())) {
+            SSLSession session = sessions.getSession(id);
+            if (session != null) session.invalidate();
+        }
+    }
+}
\ No newline at end of file